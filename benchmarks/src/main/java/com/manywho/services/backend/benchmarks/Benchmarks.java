@@ -0,0 +1,98 @@
+package com.manywho.services.backend.benchmarks;
+
+import com.manywho.sdk.entities.run.elements.type.*;
+import com.manywho.sdk.entities.run.elements.type.Object;
+import com.manywho.sdk.entities.security.AuthenticatedWho;
+import com.manywho.services.backend.ApplicationBinder;
+import com.manywho.services.backend.configuration.Configuration;
+import org.glassfish.hk2.api.ServiceLocator;
+import org.glassfish.hk2.utilities.ServiceLocatorUtilities;
+
+import java.lang.reflect.Field;
+import java.util.UUID;
+
+/**
+ * Builds the services and the requests shared by the benchmarks.
+ */
+final class Benchmarks {
+    static final String TYPE_NAME = "benchmark";
+
+    private Benchmarks() {
+    }
+
+    static ServiceLocator createServiceLocator() {
+        return ServiceLocatorUtilities.bind(new ApplicationBinder());
+    }
+
+    static AuthenticatedWho createAuthenticatedWho() {
+        AuthenticatedWho authenticatedWho = new AuthenticatedWho();
+        authenticatedWho.setManyWhoTenantId(UUID.randomUUID().toString());
+
+        return authenticatedWho;
+    }
+
+    /**
+     * The database the end to end benchmarks run against, given with -Dbenchmark.database.url (and .username and
+     * .password). This should be a throwaway database, as the typetables schema is created in it.
+     */
+    static Configuration createConfiguration() throws Exception {
+        Configuration configuration = new Configuration();
+
+        // The configuration is normally populated by the SDK from the request, so it has no setters
+        setField(configuration, "url", System.getProperty("benchmark.database.url", "jdbc:postgresql://localhost:5432/backend"));
+        setField(configuration, "username", System.getProperty("benchmark.database.username", "postgres"));
+        setField(configuration, "password", System.getProperty("benchmark.database.password", "postgres"));
+
+        return configuration;
+    }
+
+    static ObjectDataType createObjectDataType(int properties) {
+        ObjectDataType objectDataType = new ObjectDataType();
+        objectDataType.setDeveloperName(TYPE_NAME);
+        objectDataType.setProperties(new ObjectDataTypePropertyCollection());
+
+        for (int i = 0; i < properties; i++) {
+            ObjectDataTypeProperty objectDataTypeProperty = new ObjectDataTypeProperty();
+            objectDataTypeProperty.setDeveloperName("property_" + i);
+
+            objectDataType.getProperties().add(objectDataTypeProperty);
+        }
+
+        return objectDataType;
+    }
+
+    /**
+     * Creates the given number of objects, each with the given number of properties and a child collection nested to
+     * the given depth.
+     */
+    static ObjectCollection createObjects(int objects, int properties, int depth) {
+        ObjectCollection objectCollection = new ObjectCollection();
+
+        for (int i = 0; i < objects; i++) {
+            Object object = new Object();
+            object.setDeveloperName(TYPE_NAME);
+            object.setProperties(new PropertyCollection());
+
+            for (int j = 0; j < properties; j++) {
+                object.getProperties().add(new Property("property_" + j, "Value " + j + " of object " + i));
+            }
+
+            if (depth > 0) {
+                Property children = new Property("children", null);
+                children.setObjectData(createObjects(2, properties, depth - 1));
+
+                object.getProperties().add(children);
+            }
+
+            objectCollection.add(object);
+        }
+
+        return objectCollection;
+    }
+
+    private static void setField(java.lang.Object target, String name, java.lang.Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+}
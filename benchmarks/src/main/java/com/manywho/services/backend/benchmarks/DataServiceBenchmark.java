@@ -0,0 +1,78 @@
+package com.manywho.services.backend.benchmarks;
+
+import com.manywho.sdk.entities.run.elements.type.ListFilter;
+import com.manywho.sdk.entities.run.elements.type.ObjectDataRequest;
+import com.manywho.sdk.entities.run.elements.type.ObjectDataResponse;
+import com.manywho.sdk.entities.security.AuthenticatedWho;
+import com.manywho.services.backend.configuration.Configuration;
+import com.manywho.services.backend.services.ConnectionPoolService;
+import com.manywho.services.backend.services.DataService;
+import org.glassfish.hk2.api.ServiceLocator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end loads and saves through the DataService, against the Postgres database given with
+ * -Dbenchmark.database.url, at several payload sizes and hierarchy depths. Each invocation saves new objects, so this
+ * should be run against a throwaway database.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataServiceBenchmark {
+    @Param({"1", "100", "500"})
+    public int objects;
+
+    @Param({"0", "2"})
+    public int depth;
+
+    private ServiceLocator serviceLocator;
+    private DataService dataService;
+    private AuthenticatedWho authenticatedWho;
+    private Configuration configuration;
+    private ObjectDataRequest loadRequest;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.serviceLocator = Benchmarks.createServiceLocator();
+        this.dataService = this.serviceLocator.getService(DataService.class);
+        this.authenticatedWho = Benchmarks.createAuthenticatedWho();
+        this.configuration = Benchmarks.createConfiguration();
+
+        // Give each run its own tenant with enough data to load a full page
+        this.dataService.save(this.authenticatedWho, this.configuration, this.createSaveRequest());
+
+        this.loadRequest = new ObjectDataRequest();
+        this.loadRequest.setObjectDataType(Benchmarks.createObjectDataType(10));
+        this.loadRequest.setListFilter(new ListFilter());
+        this.loadRequest.getListFilter().setLimit(this.objects);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.serviceLocator.getService(ConnectionPoolService.class).close();
+        this.serviceLocator.shutdown();
+    }
+
+    @Benchmark
+    public ObjectDataResponse load() throws Exception {
+        return this.dataService.load(this.authenticatedWho, this.configuration, this.loadRequest);
+    }
+
+    @Benchmark
+    public ObjectDataResponse save() throws Exception {
+        return this.dataService.save(this.authenticatedWho, this.configuration, this.createSaveRequest());
+    }
+
+    private ObjectDataRequest createSaveRequest() {
+        ObjectDataRequest objectDataRequest = new ObjectDataRequest();
+        objectDataRequest.setObjectDataType(Benchmarks.createObjectDataType(10));
+        objectDataRequest.setObjectData(Benchmarks.createObjects(this.objects, 10, this.depth));
+
+        return objectDataRequest;
+    }
+}
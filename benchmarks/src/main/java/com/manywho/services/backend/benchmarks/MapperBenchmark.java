@@ -0,0 +1,129 @@
+package com.manywho.services.backend.benchmarks;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.manywho.sdk.entities.run.elements.type.Object;
+import com.manywho.sdk.entities.run.elements.type.Property;
+import com.manywho.services.backend.services.MapperService;
+import com.manywho.services.backend.services.SmileStorageCodec;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rows per second mapped from the json (or smile) stored in typetables into objects, and encoded from objects into the
+ * bytes stored in each format. Run with -prof gc to see the bytes allocated per row. The streaming and smile results
+ * also carry the size of the row in each format, as the jsonBytes and smileBytes secondary results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapperBenchmark {
+    @Param({"10", "50"})
+    public int properties;
+
+    private static final SmileFactory SMILE_FACTORY = new SmileFactory();
+
+    private MapperService mapperService;
+    private SmileStorageCodec smileStorageCodec;
+    private String externalId;
+    private String row;
+    private byte[] smileRow;
+    private Object object;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.mapperService = Benchmarks.createServiceLocator().getService(MapperService.class);
+        this.externalId = UUID.randomUUID().toString();
+
+        // A mix of the values we see stored, so the typed paths of the mapper are all exercised
+        JSONObject jsonObject = new JSONObject();
+
+        for (int i = 0; i < this.properties; i++) {
+            switch (i % 4) {
+                case 0:
+                    jsonObject.put("property_" + i, "Some text value " + i);
+                    break;
+                case 1:
+                    jsonObject.put("property_" + i, i * 1.5);
+                    break;
+                case 2:
+                    jsonObject.put("property_" + i, i % 3 == 0);
+                    break;
+                default:
+                    jsonObject.put("property_" + i, "2016-01-0" + (i % 9 + 1) + "T12:00:00Z");
+                    break;
+            }
+        }
+
+        this.row = jsonObject.toString();
+        this.smileStorageCodec = new SmileStorageCodec();
+        this.smileRow = this.smileStorageCodec.encode(this.row);
+        this.object = this.mapperService.convertRowToObject("benchmark", this.externalId, this.row);
+    }
+
+    @Benchmark
+    public Object streaming(RowSizes rowSizes) throws Exception {
+        return this.mapperService.convertRowToObject("benchmark", this.externalId, this.row);
+    }
+
+    @Benchmark
+    public Object jsonObject() throws Exception {
+        return this.mapperService.convertJSONObjectToObject("benchmark", this.externalId, new JSONObject(this.row));
+    }
+
+    @Benchmark
+    public Object smile(RowSizes rowSizes) throws Exception {
+        try (JsonParser parser = SMILE_FACTORY.createParser(this.smileRow)) {
+            return this.mapperService.convertRowToObject("benchmark", this.externalId, parser);
+        }
+    }
+
+    @Benchmark
+    public byte[] encodeJson() throws Exception {
+        // The jsonb column is sent as the json text, which the driver writes as UTF-8
+        return this.toJson(this.object).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] encodeSmile() throws Exception {
+        // Saves always build the json text, which the smile codec then encodes
+        return this.smileStorageCodec.encode(this.toJson(this.object));
+    }
+
+    /**
+     * Builds the json text of the object's properties the same way a save does.
+     */
+    private String toJson(Object object) {
+        JSONObject jsonObject = new JSONObject();
+
+        for (Property property : object.getProperties()) {
+            jsonObject.put(property.getDeveloperName(), property.getContentValue());
+        }
+
+        return jsonObject.toString();
+    }
+
+    /**
+     * Reports the stored size of the row in each format alongside the throughput. The sizes are set (rather than
+     * counted) every iteration, so the results hold the sizes themselves.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class RowSizes {
+        public long jsonBytes;
+        public long smileBytes;
+
+        @Setup(Level.Iteration)
+        public void setUp(MapperBenchmark benchmark) {
+            this.jsonBytes = benchmark.row.getBytes(StandardCharsets.UTF_8).length;
+            this.smileBytes = benchmark.smileRow.length;
+        }
+    }
+}
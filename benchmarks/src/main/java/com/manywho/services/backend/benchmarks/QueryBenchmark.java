@@ -0,0 +1,58 @@
+package com.manywho.services.backend.benchmarks;
+
+import com.manywho.sdk.entities.run.elements.type.ListFilter;
+import com.manywho.sdk.entities.run.elements.type.ListFilterWhere;
+import com.manywho.sdk.entities.run.elements.type.ObjectDataRequest;
+import com.manywho.sdk.entities.security.AuthenticatedWho;
+import com.manywho.sdk.enums.CriteriaType;
+import com.manywho.services.backend.entities.Query;
+import com.manywho.services.backend.services.DatabaseService;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generating the SQL for a load, with a growing number of WHERE entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+    @Param({"0", "1", "5"})
+    public int wheres;
+
+    private DatabaseService databaseService;
+    private AuthenticatedWho authenticatedWho;
+    private ObjectDataRequest objectDataRequest;
+
+    @Setup
+    public void setUp() {
+        this.databaseService = Benchmarks.createServiceLocator().getService(DatabaseService.class);
+        this.authenticatedWho = Benchmarks.createAuthenticatedWho();
+
+        this.objectDataRequest = new ObjectDataRequest();
+        this.objectDataRequest.setObjectDataType(Benchmarks.createObjectDataType(10));
+        this.objectDataRequest.setListFilter(new ListFilter());
+        this.objectDataRequest.getListFilter().setLimit(50);
+        this.objectDataRequest.getListFilter().setOrderByPropertyDeveloperName("property_0");
+        this.objectDataRequest.getListFilter().setWhere(new ArrayList<>());
+
+        for (int i = 0; i < this.wheres; i++) {
+            ListFilterWhere listFilterWhere = new ListFilterWhere();
+            listFilterWhere.setColumnName("property_" + i);
+            listFilterWhere.setCriteriaType(i % 2 == 0 ? CriteriaType.Equal : CriteriaType.GreaterThan);
+            listFilterWhere.setContentValue(String.valueOf(i));
+
+            this.objectDataRequest.getListFilter().getWhere().add(listFilterWhere);
+        }
+    }
+
+    @Benchmark
+    public Query getSelectStatementForObjectDataRequest() throws Exception {
+        return this.databaseService.getSelectStatementForObjectDataRequest(this.authenticatedWho, this.objectDataRequest);
+    }
+}
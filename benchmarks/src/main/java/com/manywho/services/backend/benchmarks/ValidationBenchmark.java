@@ -0,0 +1,39 @@
+package com.manywho.services.backend.benchmarks;
+
+import com.manywho.services.backend.services.BindingService;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The validation that runs for every object and property on every save, and on loads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ValidationBenchmark {
+    private BindingService bindingService;
+    private String name;
+    private String uuid;
+
+    @Setup
+    public void setUp() {
+        this.bindingService = Benchmarks.createServiceLocator().getService(BindingService.class);
+        this.name = "customer_account_number";
+        this.uuid = UUID.randomUUID().toString();
+    }
+
+    @Benchmark
+    public void validateName() throws Exception {
+        this.bindingService.validateName(this.name);
+    }
+
+    @Benchmark
+    public void validateUUID() throws Exception {
+        this.bindingService.validateUUID(this.uuid);
+    }
+}
@@ -1,11 +1,23 @@
 package com.manywho.services.backend;
 
+import com.manywho.services.backend.services.ConnectionPoolService;
 import com.manywho.services.backend.services.DatabaseService;
 import com.manywho.services.backend.services.DataService;
+import com.manywho.services.backend.services.ExecutionService;
+import com.manywho.services.backend.services.LoadCacheService;
+import com.manywho.services.backend.services.LoadCoalescingService;
 import com.manywho.services.backend.services.BindingService;
 import com.manywho.services.backend.services.MapperService;
+import com.manywho.services.backend.services.MetricsService;
+import com.manywho.services.backend.services.QueryService;
+import com.manywho.services.backend.services.ReplicaService;
+import com.manywho.services.backend.services.SchemaService;
+import com.manywho.services.backend.services.TableStorageService;
+import com.manywho.services.backend.services.TransferService;
 import org.glassfish.hk2.utilities.binding.AbstractBinder;
 
+import javax.inject.Singleton;
+
 public class ApplicationBinder extends AbstractBinder {
     @Override
     protected void configure() {
@@ -13,5 +25,15 @@ public class ApplicationBinder extends AbstractBinder {
         bind(BindingService.class).to(BindingService.class);
         bind(DatabaseService.class).to(DatabaseService.class);
         bind(MapperService.class).to(MapperService.class);
+        bind(TransferService.class).to(TransferService.class);
+        bind(QueryService.class).to(QueryService.class).in(Singleton.class);
+        bind(ConnectionPoolService.class).to(ConnectionPoolService.class).in(Singleton.class);
+        bind(SchemaService.class).to(SchemaService.class).in(Singleton.class);
+        bind(TableStorageService.class).to(TableStorageService.class).in(Singleton.class);
+        bind(LoadCacheService.class).to(LoadCacheService.class).in(Singleton.class);
+        bind(LoadCoalescingService.class).to(LoadCoalescingService.class).in(Singleton.class);
+        bind(ExecutionService.class).to(ExecutionService.class).in(Singleton.class);
+        bind(MetricsService.class).to(MetricsService.class).in(Singleton.class);
+        bind(ReplicaService.class).to(ReplicaService.class).in(Singleton.class);
     }
 }
@@ -2,10 +2,23 @@ package com.manywho.services.backend.configuration;
 
 import com.manywho.sdk.services.annotations.Property;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class Configuration {
     public static final String DATABASE_URL = "Database Url";
     public static final String DATABASE_USERNAME = "Database Username";
     public static final String DATABASE_PASSWORD = "Database Password";
+    public static final String DATABASE_REPLICA_URLS = "Database Replica Urls";
+    public static final String STORAGE_MODE = "Storage Mode";
+    public static final String CASCADE_DELETES = "Cascade Deletes";
+    public static final String STORAGE_FORMAT = "Storage Format";
+
+    public static final String STORAGE_MODE_JSON = "json";
+    public static final String STORAGE_MODE_TABLE = "table";
+
+    public static final String STORAGE_FORMAT_JSONB = "jsonb";
+    public static final String STORAGE_FORMAT_SMILE = "smile";
 
     @Property(DATABASE_URL)
     private String url;
@@ -16,6 +29,18 @@ public class Configuration {
     @Property(DATABASE_PASSWORD)
     private String password;
 
+    @Property(DATABASE_REPLICA_URLS)
+    private String replicaUrls;
+
+    @Property(STORAGE_MODE)
+    private String storageMode;
+
+    @Property(CASCADE_DELETES)
+    private String cascadeDeletes;
+
+    @Property(STORAGE_FORMAT)
+    private String storageFormat;
+
     public String getUrl() {
         return url;
     }
@@ -27,4 +52,44 @@ public class Configuration {
     public String getPassword() {
         return password;
     }
+
+    /**
+     * Gets the urls of the read replicas loads can be sent to, which are given as a comma separated list and use the
+     * same username and password as the primary database.
+     */
+    public List<String> getReplicaUrls() {
+        List<String> urls = new ArrayList<>();
+
+        if (replicaUrls == null) {
+            return urls;
+        }
+
+        for (String url : replicaUrls.split(",")) {
+            if (url.trim().isEmpty() == false) {
+                urls.add(url.trim());
+            }
+        }
+
+        return urls;
+    }
+
+    public String getStorageMode() {
+        return storageMode;
+    }
+
+    public boolean isTableStorage() {
+        return STORAGE_MODE_TABLE.equalsIgnoreCase(storageMode);
+    }
+
+    public String getStorageFormat() {
+        return storageFormat;
+    }
+
+    public boolean isSmileFormat() {
+        return STORAGE_FORMAT_SMILE.equalsIgnoreCase(storageFormat);
+    }
+
+    public boolean isCascadeDeletes() {
+        return Boolean.parseBoolean(cascadeDeletes);
+    }
 }
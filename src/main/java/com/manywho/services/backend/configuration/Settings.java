@@ -0,0 +1,107 @@
+package com.manywho.services.backend.configuration;
+
+/**
+ * Service wide settings that are not specific to a tenant. Each setting is read from a JVM system property (e.g.
+ * -Dbackend.pool.maximumSize=20 in JAVA_OPTS) and then from the equivalent environment variable (e.g.
+ * BACKEND_POOL_MAXIMUMSIZE), falling back to the provided default if neither has been set.
+ */
+public final class Settings {
+    public static final String POOL_MAXIMUM_SIZE = "backend.pool.maximumSize";
+    public static final String POOL_MINIMUM_IDLE = "backend.pool.minimumIdle";
+    public static final String POOL_IDLE_TIMEOUT = "backend.pool.idleTimeout";
+    public static final String POOL_CONNECTION_TIMEOUT = "backend.pool.connectionTimeout";
+    public static final String POOL_VALIDATION_TIMEOUT = "backend.pool.validationTimeout";
+    public static final String POOL_MAXIMUM_LIFETIME = "backend.pool.maximumLifetime";
+    public static final String POOL_EVICTION_TIMEOUT = "backend.pool.evictionTimeout";
+    public static final String POOL_PREPARE_THRESHOLD = "backend.pool.prepareThreshold";
+    public static final String POOL_STATEMENT_CACHE_SIZE = "backend.pool.statementCacheSize";
+    public static final String REPLICA_STRATEGY = "backend.replica.strategy";
+    public static final String REPLICA_HEALTH_CHECK_INTERVAL = "backend.replica.healthCheckInterval";
+    public static final String REPLICA_READ_YOUR_WRITES_WINDOW = "backend.replica.readYourWritesWindow";
+    public static final String EXECUTION_ASYNCHRONOUS = "backend.execution.asynchronous";
+    public static final String EXECUTION_THREADS = "backend.execution.threads";
+    public static final String EXECUTION_QUEUE_SIZE = "backend.execution.queueSize";
+    public static final String EXECUTION_TIMEOUT = "backend.execution.timeout";
+    public static final String SAVE_BATCH_SIZE = "backend.save.batchSize";
+    public static final String SAVE_PARALLELISM = "backend.save.parallelism";
+    public static final String SAVE_THREADS = "backend.save.threads";
+    public static final String SAVE_ACQUIRE_TIMEOUT = "backend.save.acquireTimeout";
+    public static final String SAVE_ORPHAN_TIMEOUT = "backend.save.orphanTimeout";
+    public static final String LOAD_FETCH_SIZE = "backend.load.fetchSize";
+    public static final String IMPORT_BUFFER_SIZE = "backend.import.bufferSize";
+    public static final String LOAD_HIERARCHICAL = "backend.load.hierarchical";
+    public static final String LOAD_MAXIMUM_DEPTH = "backend.load.maximumDepth";
+    public static final String BINDING_NAME_CACHE_SIZE = "backend.binding.nameCacheSize";
+    public static final String BINDING_CACHE_SIZE = "backend.binding.cacheSize";
+    public static final String LOAD_KEYSET_PAGING = "backend.load.keysetPaging";
+    public static final String LOAD_KEYSET_CACHE_SIZE = "backend.load.keysetCacheSize";
+    public static final String LOAD_COALESCING = "backend.load.coalescing";
+    public static final String LOAD_COALESCING_TIMEOUT = "backend.load.coalescingTimeout";
+    public static final String LOAD_CACHE_ENABLED = "backend.load.cache.enabled";
+    public static final String LOAD_CACHE_SIZE = "backend.load.cache.size";
+    public static final String LOAD_CACHE_TIME_TO_LIVE = "backend.load.cache.timeToLive";
+    public static final String METRICS_ENABLED = "backend.metrics.enabled";
+    public static final String METRICS_MAXIMUM_SERIES = "backend.metrics.maximumSeries";
+    public static final String METRICS_ENDPOINT_ENABLED = "backend.metrics.endpoint.enabled";
+    public static final String QUERY_TEMPLATE_CACHE_SIZE = "backend.query.templateCacheSize";
+    public static final String SCHEMA_MANAGE = "backend.schema.manage";
+    public static final String SCHEMA_INDEX_HOT_PROPERTIES = "backend.schema.indexHotProperties";
+    public static final String SCHEMA_HOT_PROPERTY_THRESHOLD = "backend.schema.hotPropertyThreshold";
+
+    private Settings() {
+    }
+
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+
+        if (value == null ||
+                value.isEmpty() == true) {
+            value = System.getenv(key.replace('.', '_').toUpperCase());
+        }
+
+        if (value == null ||
+                value.trim().isEmpty() == true) {
+            return defaultValue;
+        }
+
+        return value.trim();
+    }
+
+    public static int getInteger(String key, int defaultValue) {
+        String value = getString(key, null);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("The setting " + key + " must be a whole number. The value provided is: " + value);
+        }
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("The setting " + key + " must be a whole number. The value provided is: " + value);
+        }
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+
+        if (value == null) {
+            return defaultValue;
+        }
+
+        return Boolean.parseBoolean(value);
+    }
+}
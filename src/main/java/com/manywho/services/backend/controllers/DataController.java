@@ -1,43 +1,95 @@
 package com.manywho.services.backend.controllers;
 
 import com.manywho.sdk.entities.run.elements.type.ObjectDataRequest;
-import com.manywho.sdk.entities.run.elements.type.ObjectDataResponse;
-import com.manywho.sdk.services.controllers.AbstractDataController;
+import com.manywho.sdk.entities.security.AuthenticatedWho;
+import com.manywho.sdk.services.controllers.AbstractController;
 import com.manywho.services.backend.configuration.Configuration;
+import com.manywho.services.backend.providers.MetricsWriterInterceptor;
 import com.manywho.services.backend.services.DataService;
+import com.manywho.services.backend.services.ExecutionService;
 
 import javax.inject.Inject;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
 
+/**
+ * Handles the same routes as the SDK's AbstractDataController, but suspends each request and hands the database work
+ * to the ExecutionService, rather than blocking a container thread for the whole time it takes.
+ */
 @Path("/")
 @Consumes("application/json")
 @Produces("application/json")
-public class DataController extends AbstractDataController {
+public class DataController extends AbstractController {
     @Inject
     private DataService dataService;
 
-    @Override
-    public ObjectDataResponse delete(ObjectDataRequest objectDataRequest) throws Exception {
-        throw new Exception("The DELETE operation has not yet been implemented.");
+    @Inject
+    private ExecutionService executionService;
+
+    @Context
+    private ContainerRequestContext requestContext;
+
+    @Path("/data/delete")
+    @POST
+    public void delete(ObjectDataRequest objectDataRequest, @Suspended AsyncResponse asyncResponse) throws Exception {
+        // The request details have to be read on the container thread, before the request is handed off
+        AuthenticatedWho authenticatedWho = this.authenticate();
+        Configuration configuration = this.parseConfigurationValues(objectDataRequest, Configuration.class);
+
+        this.executionService.execute(asyncResponse, () -> this.dataService.delete(authenticatedWho, configuration, objectDataRequest));
     }
 
-    @Override
-    public ObjectDataResponse load(ObjectDataRequest objectDataRequest) throws Exception {
-        return this.dataService.load(
-                this.getAuthenticatedWho(),
-                this.parseConfigurationValues(objectDataRequest, Configuration.class),
-                objectDataRequest
-        );
+    @Path("/data")
+    @POST
+    public void load(ObjectDataRequest objectDataRequest, @Suspended AsyncResponse asyncResponse) throws Exception {
+        AuthenticatedWho authenticatedWho = this.authenticate();
+        Configuration configuration = this.parseConfigurationValues(objectDataRequest, Configuration.class);
+
+        this.executionService.execute(asyncResponse, () -> this.dataService.load(authenticatedWho, configuration, objectDataRequest));
     }
 
-    @Override
-    public ObjectDataResponse save(ObjectDataRequest objectDataRequest) throws Exception {
-        return this.dataService.save(
-                this.getAuthenticatedWho(),
-                this.parseConfigurationValues(objectDataRequest, Configuration.class),
-                objectDataRequest
-        );
+    /**
+     * Loads a page of objects, starting straight after the position in the continuation token that came back with the
+     * previous page (or from the start without one). The ManyWho ListFilter has nowhere to carry the token, so this is
+     * for callers that talk to the service directly.
+     */
+    @Path("/data/page")
+    @POST
+    public void loadPage(ObjectDataRequest objectDataRequest, @QueryParam("continuationToken") String continuationToken, @Suspended AsyncResponse asyncResponse) throws Exception {
+        AuthenticatedWho authenticatedWho = this.authenticate();
+        Configuration configuration = this.parseConfigurationValues(objectDataRequest, Configuration.class);
+
+        this.executionService.execute(asyncResponse, () -> this.dataService.loadPage(authenticatedWho, configuration, objectDataRequest, continuationToken));
+    }
+
+    @Path("/data")
+    @PUT
+    public void save(ObjectDataRequest objectDataRequest, @Suspended AsyncResponse asyncResponse) throws Exception {
+        AuthenticatedWho authenticatedWho = this.authenticate();
+        Configuration configuration = this.parseConfigurationValues(objectDataRequest, Configuration.class);
+
+        this.executionService.execute(asyncResponse, () -> this.dataService.save(authenticatedWho, configuration, objectDataRequest));
+    }
+
+    /**
+     * Gets the caller, keeping their tenant with the request, as the response is serialised (and its metrics recorded)
+     * after the request has been handed off and the tenant is no longer known.
+     */
+    private AuthenticatedWho authenticate() throws Exception {
+        AuthenticatedWho authenticatedWho = this.getAuthenticatedWho();
+
+        if (authenticatedWho != null) {
+            this.requestContext.setProperty(MetricsWriterInterceptor.TENANT_PROPERTY, authenticatedWho.getManyWhoTenantId());
+        }
+
+        return authenticatedWho;
     }
 }
@@ -16,17 +16,50 @@ import javax.ws.rs.Consumes;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Providers;
+import java.io.ByteArrayOutputStream;
+import java.lang.annotation.Annotation;
 
 @Path("/")
 @Consumes("application/json")
 @Produces("application/json")
 public class DescribeController {
+    // The describe response is the same for every request, so it's only built and serialised once
+    private static volatile byte[] describeResponse;
+
     @Inject
     private BindingService bindingService;
 
+    @Context
+    private Providers providers;
+
     @Path("/metadata")
     @POST
-    public DescribeServiceResponse describe(ServiceRequest serviceRequest) throws Exception {
+    public Response describe(ServiceRequest serviceRequest) throws Exception {
+        byte[] response = describeResponse;
+
+        if (response == null) {
+            response = this.serialise(this.createDescribeResponse());
+
+            // If two requests race to build it, they both build the same thing, so it doesn't matter which one wins
+            describeResponse = response;
+        }
+
+        return Response.ok(response, MediaType.APPLICATION_JSON_TYPE).build();
+    }
+
+    @Path("/metadata/binding")
+    @POST
+    public TypeElement describeBinding(TypeElement typeElement) throws Exception {
+        return this.bindingService.generateBinding(typeElement);
+    }
+
+    private DescribeServiceResponse createDescribeResponse() throws Exception {
         return new DescribeServiceBuilder()
                 .setProvidesDatabase(true)
                 .setCulture(new Culture("EN", "US"))
@@ -35,15 +68,44 @@ public class DescribeController {
                             add(new DescribeValue(Configuration.DATABASE_URL, ContentType.String, true));
                             add(new DescribeValue(Configuration.DATABASE_USERNAME, ContentType.String, true));
                             add(new DescribeValue(Configuration.DATABASE_PASSWORD, ContentType.Password, true));
+                            add(new DescribeValue(Configuration.DATABASE_REPLICA_URLS, ContentType.String, false));
+                            add(new DescribeValue(Configuration.STORAGE_MODE, ContentType.String, false));
+                            add(new DescribeValue(Configuration.CASCADE_DELETES, ContentType.Boolean, false));
+                            add(new DescribeValue(Configuration.STORAGE_FORMAT, ContentType.String, false));
                         }}
                 )
                 .createDescribeService()
                 .createResponse();
     }
 
-    @Path("/metadata/binding")
-    @POST
-    public TypeElement describeBinding(TypeElement typeElement) throws Exception {
-        return this.bindingService.generateBinding(typeElement);
+    /**
+     * Serialises the response with the same writer Jersey would use to return it, so the cached bytes are exactly what
+     * the platform received before they were cached.
+     */
+    private byte[] serialise(DescribeServiceResponse describeServiceResponse) throws Exception {
+        MessageBodyWriter<DescribeServiceResponse> writer = this.providers.getMessageBodyWriter(
+                DescribeServiceResponse.class,
+                DescribeServiceResponse.class,
+                new Annotation[0],
+                MediaType.APPLICATION_JSON_TYPE
+        );
+
+        if (writer == null) {
+            throw new Exception("No writer could be found to serialise the DescribeServiceResponse into json.");
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        writer.writeTo(
+                describeServiceResponse,
+                DescribeServiceResponse.class,
+                DescribeServiceResponse.class,
+                new Annotation[0],
+                MediaType.APPLICATION_JSON_TYPE,
+                new MultivaluedHashMap<>(),
+                outputStream
+        );
+
+        return outputStream.toByteArray();
     }
 }
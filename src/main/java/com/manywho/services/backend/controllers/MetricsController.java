@@ -0,0 +1,94 @@
+package com.manywho.services.backend.controllers;
+
+import com.manywho.sdk.entities.security.AuthenticatedWho;
+import com.manywho.sdk.services.controllers.AbstractController;
+import com.manywho.services.backend.configuration.Settings;
+import com.manywho.services.backend.entities.CacheMetrics;
+import com.manywho.services.backend.entities.OperationMetrics;
+import com.manywho.services.backend.entities.PoolMetrics;
+import com.manywho.services.backend.entities.ServiceMetrics;
+import com.manywho.services.backend.services.ConnectionPoolService;
+import com.manywho.services.backend.services.ExecutionService;
+import com.manywho.services.backend.services.LoadCacheService;
+import com.manywho.services.backend.services.MetricsService;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import java.util.List;
+
+/**
+ * Exposes the service's metrics, which is turned off unless the backend.metrics.endpoint.enabled setting is true. Even
+ * then, the metrics are only given to requests that are authenticated in the same way as the data routes, and the
+ * operation metrics only include the caller's own tenant.
+ */
+@Path("/metrics")
+@Produces("application/json")
+public class MetricsController extends AbstractController {
+    @Inject
+    private ConnectionPoolService connectionPoolService;
+
+    @Inject
+    private LoadCacheService loadCacheService;
+
+    @Inject
+    private MetricsService metricsService;
+
+    @Inject
+    private ExecutionService executionService;
+
+    @GET
+    public ServiceMetrics metrics() throws Exception {
+        AuthenticatedWho authenticatedWho = this.authorize();
+
+        ServiceMetrics serviceMetrics = new ServiceMetrics();
+        serviceMetrics.setOperations(this.metricsService.getMetrics(authenticatedWho.getManyWhoTenantId()));
+        serviceMetrics.setPools(this.connectionPoolService.getMetrics());
+        serviceMetrics.setCache(this.loadCacheService.getMetrics());
+        serviceMetrics.setActiveRequests(this.executionService.getActiveCount());
+        serviceMetrics.setQueuedRequests(this.executionService.getQueueDepth());
+
+        return serviceMetrics;
+    }
+
+    @Path("/operations")
+    @GET
+    public List<OperationMetrics> operations() throws Exception {
+        AuthenticatedWho authenticatedWho = this.authorize();
+
+        return this.metricsService.getMetrics(authenticatedWho.getManyWhoTenantId());
+    }
+
+    @Path("/pools")
+    @GET
+    public List<PoolMetrics> pools() throws Exception {
+        this.authorize();
+
+        return this.connectionPoolService.getMetrics();
+    }
+
+    @Path("/cache")
+    @GET
+    public CacheMetrics cache() throws Exception {
+        this.authorize();
+
+        return this.loadCacheService.getMetrics();
+    }
+
+    private AuthenticatedWho authorize() throws Exception {
+        // The routes don't exist at all unless they've been turned on
+        if (Settings.getBoolean(Settings.METRICS_ENDPOINT_ENABLED, false) == false) {
+            throw new NotFoundException();
+        }
+
+        AuthenticatedWho authenticatedWho = this.getAuthenticatedWho();
+
+        if (authenticatedWho == null) {
+            throw new Exception("The metrics can only be read by an authenticated user.");
+        }
+
+        return authenticatedWho;
+    }
+}
@@ -0,0 +1,119 @@
+package com.manywho.services.backend.controllers;
+
+import com.manywho.sdk.entities.run.elements.type.ObjectDataRequest;
+import com.manywho.sdk.entities.security.AuthenticatedWho;
+import com.manywho.sdk.services.controllers.AbstractController;
+import com.manywho.services.backend.configuration.Configuration;
+import com.manywho.services.backend.entities.ImportResult;
+import com.manywho.services.backend.services.TransferService;
+
+import javax.inject.Inject;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.Providers;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.annotation.Annotation;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams a tenant's objects out of and into the database as newline delimited json, for moving data in bulk rather
+ * than through thousands of individual loads and saves.
+ */
+@Path("/")
+public class TransferController extends AbstractController {
+    private static final String NDJSON = "application/x-ndjson";
+
+    @Inject
+    private TransferService transferService;
+
+    @Context
+    private Providers providers;
+
+    /**
+     * Exports every row of the tenant, or only the rows of the request's type if it has one. Nothing is written until
+     * the first row is read, and the response is sent in chunks as the rows are read.
+     */
+    @Path("/data/export")
+    @POST
+    @Consumes("application/json")
+    @Produces(NDJSON)
+    public Response export(ObjectDataRequest objectDataRequest) throws Exception {
+        AuthenticatedWho authenticatedWho = this.getAuthenticatedWho();
+        Configuration configuration = this.parseConfigurationValues(objectDataRequest, Configuration.class);
+
+        String typeName = objectDataRequest.getObjectDataType() == null ? null : objectDataRequest.getObjectDataType().getDeveloperName();
+
+        StreamingOutput streamingOutput = outputStream -> {
+            try {
+                this.transferService.executeExport(authenticatedWho, configuration, typeName, outputStream);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("The export could not be completed: " + e.getMessage(), e);
+            }
+        };
+
+        return Response.ok(streamingOutput).type(NDJSON).build();
+    }
+
+    /**
+     * Imports the rows after the first line, which is an ObjectDataRequest holding the configuration values of the
+     * database to import into. Each row is in the same format as the rows of an export.
+     */
+    @Path("/data/import")
+    @POST
+    @Consumes(NDJSON)
+    @Produces("application/json")
+    public ImportResult importRows(InputStream inputStream) throws Exception {
+        AuthenticatedWho authenticatedWho = this.getAuthenticatedWho();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+        String header = reader.readLine();
+
+        if (header == null ||
+                header.trim().isEmpty() == true) {
+            throw new Exception("The first line of the import must be an ObjectDataRequest with the configuration values.");
+        }
+
+        Configuration configuration = this.parseConfigurationValues(this.readRequest(header), Configuration.class);
+
+        return this.transferService.executeImport(authenticatedWho, configuration, reader);
+    }
+
+    /**
+     * Reads the request with the same reader Jersey would use if it were the whole body.
+     */
+    private ObjectDataRequest readRequest(String json) throws Exception {
+        MessageBodyReader<ObjectDataRequest> messageBodyReader = this.providers.getMessageBodyReader(
+                ObjectDataRequest.class,
+                ObjectDataRequest.class,
+                new Annotation[0],
+                MediaType.APPLICATION_JSON_TYPE
+        );
+
+        if (messageBodyReader == null) {
+            throw new Exception("No reader could be found to read the ObjectDataRequest from json.");
+        }
+
+        return messageBodyReader.readFrom(
+                ObjectDataRequest.class,
+                ObjectDataRequest.class,
+                new Annotation[0],
+                MediaType.APPLICATION_JSON_TYPE,
+                new MultivaluedHashMap<>(),
+                new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8))
+        );
+    }
+}
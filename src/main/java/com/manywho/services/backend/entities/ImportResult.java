@@ -0,0 +1,34 @@
+package com.manywho.services.backend.entities;
+
+/**
+ * The outcome of an import. Fewer rows are written than read if the same object appears more than once. Imports that
+ * include an object that already exists for another tenant fail, rather than writing anything.
+ */
+public class ImportResult {
+    private long rowsRead;
+    private long rowsWritten;
+
+    public ImportResult() {
+    }
+
+    public ImportResult(long rowsRead, long rowsWritten) {
+        this.rowsRead = rowsRead;
+        this.rowsWritten = rowsWritten;
+    }
+
+    public long getRowsRead() {
+        return rowsRead;
+    }
+
+    public void setRowsRead(long rowsRead) {
+        this.rowsRead = rowsRead;
+    }
+
+    public long getRowsWritten() {
+        return rowsWritten;
+    }
+
+    public void setRowsWritten(long rowsWritten) {
+        this.rowsWritten = rowsWritten;
+    }
+}
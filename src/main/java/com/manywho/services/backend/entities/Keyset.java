@@ -0,0 +1,35 @@
+package com.manywho.services.backend.entities;
+
+/**
+ * The position of the last row of a page, as the value it was ordered by and its id. The next page starts straight
+ * after it, which Postgres can seek to through an index rather than counting its way past every earlier row.
+ */
+public class Keyset {
+    private final String orderBy;
+    private final String direction;
+    private final String value;
+    private final String id;
+
+    public Keyset(String orderBy, String direction, String value, String id) {
+        this.orderBy = orderBy;
+        this.direction = direction;
+        this.value = value;
+        this.id = id;
+    }
+
+    public String getOrderBy() {
+        return orderBy;
+    }
+
+    public String getDirection() {
+        return direction;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public String getId() {
+        return id;
+    }
+}
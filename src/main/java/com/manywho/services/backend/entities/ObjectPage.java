@@ -0,0 +1,29 @@
+package com.manywho.services.backend.entities;
+
+import com.manywho.sdk.entities.run.elements.type.ObjectCollection;
+
+/**
+ * A page of objects, along with the opaque token to pass back to load the next page. The token is null once there
+ * are no more pages.
+ */
+public class ObjectPage {
+    private final ObjectCollection objectData;
+    private final String continuationToken;
+
+    public ObjectPage(ObjectCollection objectData, String continuationToken) {
+        this.objectData = objectData;
+        this.continuationToken = continuationToken;
+    }
+
+    public ObjectCollection getObjectData() {
+        return objectData;
+    }
+
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    public boolean hasMoreResults() {
+        return continuationToken != null;
+    }
+}
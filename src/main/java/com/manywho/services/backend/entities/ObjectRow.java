@@ -0,0 +1,59 @@
+package com.manywho.services.backend.entities;
+
+/**
+ * A single row of the typetables table, as produced by flattening an object hierarchy before it's saved. Child objects
+ * become their own rows that point back at the object they belong to through the parent id, and the name of the
+ * property on that object that holds them. The version is the one the row is expected to be at when it's saved, or the
+ * one it was at when it was loaded, and is null if it isn't known.
+ */
+public class ObjectRow {
+    private final String id;
+    private final String parentId;
+    private final String parentProperty;
+    private final String name;
+    private final String tenantId;
+    private final String data;
+    private final Long version;
+
+    public ObjectRow(String id, String parentId, String parentProperty, String name, String tenantId, String data) {
+        this(id, parentId, parentProperty, name, tenantId, data, null);
+    }
+
+    public ObjectRow(String id, String parentId, String parentProperty, String name, String tenantId, String data, Long version) {
+        this.id = id;
+        this.parentId = parentId;
+        this.parentProperty = parentProperty;
+        this.name = name;
+        this.tenantId = tenantId;
+        this.data = data;
+        this.version = version;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getParentId() {
+        return parentId;
+    }
+
+    public String getParentProperty() {
+        return parentProperty;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getTenantId() {
+        return tenantId;
+    }
+
+    public String getData() {
+        return data;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,101 @@
+package com.manywho.services.backend.entities;
+
+import java.util.Map;
+
+/**
+ * The totals for one operation (or one stage of an operation) against one type of one tenant, since the service
+ * started. The latency buckets hold the number of calls that took up to each number of milliseconds, and more than
+ * the previous one.
+ */
+public class OperationMetrics {
+    private String operation;
+    private String tenantId;
+    private String typeName;
+    private long count;
+    private long errors;
+    private long rows;
+    private long payloadSize;
+    private double averageMillis;
+    private double maximumMillis;
+    private Map<String, Long> latencyBuckets;
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public void setOperation(String operation) {
+        this.operation = operation;
+    }
+
+    public String getTenantId() {
+        return tenantId;
+    }
+
+    public void setTenantId(String tenantId) {
+        this.tenantId = tenantId;
+    }
+
+    public String getTypeName() {
+        return typeName;
+    }
+
+    public void setTypeName(String typeName) {
+        this.typeName = typeName;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void setCount(long count) {
+        this.count = count;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    public void setErrors(long errors) {
+        this.errors = errors;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public void setRows(long rows) {
+        this.rows = rows;
+    }
+
+    public long getPayloadSize() {
+        return payloadSize;
+    }
+
+    public void setPayloadSize(long payloadSize) {
+        this.payloadSize = payloadSize;
+    }
+
+    public double getAverageMillis() {
+        return averageMillis;
+    }
+
+    public void setAverageMillis(double averageMillis) {
+        this.averageMillis = averageMillis;
+    }
+
+    public double getMaximumMillis() {
+        return maximumMillis;
+    }
+
+    public void setMaximumMillis(double maximumMillis) {
+        this.maximumMillis = maximumMillis;
+    }
+
+    public Map<String, Long> getLatencyBuckets() {
+        return latencyBuckets;
+    }
+
+    public void setLatencyBuckets(Map<String, Long> latencyBuckets) {
+        this.latencyBuckets = latencyBuckets;
+    }
+}
@@ -0,0 +1,89 @@
+package com.manywho.services.backend.entities;
+
+/**
+ * A point in time snapshot of a single connection pool, used to size the pools. The pool is only identified by its
+ * name, as the url and credentials of a tenant's database aren't anything the service should hand out.
+ */
+public class PoolMetrics {
+    private String poolName;
+    private int activeConnections;
+    private int idleConnections;
+    private int totalConnections;
+    private int threadsAwaitingConnection;
+    private long acquisitions;
+    private long acquisitionTimeouts;
+    private double averageWaitMillis;
+    private double maximumWaitMillis;
+
+    public String getPoolName() {
+        return poolName;
+    }
+
+    public void setPoolName(String poolName) {
+        this.poolName = poolName;
+    }
+
+    public int getActiveConnections() {
+        return activeConnections;
+    }
+
+    public void setActiveConnections(int activeConnections) {
+        this.activeConnections = activeConnections;
+    }
+
+    public int getIdleConnections() {
+        return idleConnections;
+    }
+
+    public void setIdleConnections(int idleConnections) {
+        this.idleConnections = idleConnections;
+    }
+
+    public int getTotalConnections() {
+        return totalConnections;
+    }
+
+    public void setTotalConnections(int totalConnections) {
+        this.totalConnections = totalConnections;
+    }
+
+    public int getThreadsAwaitingConnection() {
+        return threadsAwaitingConnection;
+    }
+
+    public void setThreadsAwaitingConnection(int threadsAwaitingConnection) {
+        this.threadsAwaitingConnection = threadsAwaitingConnection;
+    }
+
+    public long getAcquisitions() {
+        return acquisitions;
+    }
+
+    public void setAcquisitions(long acquisitions) {
+        this.acquisitions = acquisitions;
+    }
+
+    public long getAcquisitionTimeouts() {
+        return acquisitionTimeouts;
+    }
+
+    public void setAcquisitionTimeouts(long acquisitionTimeouts) {
+        this.acquisitionTimeouts = acquisitionTimeouts;
+    }
+
+    public double getAverageWaitMillis() {
+        return averageWaitMillis;
+    }
+
+    public void setAverageWaitMillis(double averageWaitMillis) {
+        this.averageWaitMillis = averageWaitMillis;
+    }
+
+    public double getMaximumWaitMillis() {
+        return maximumWaitMillis;
+    }
+
+    public void setMaximumWaitMillis(double maximumWaitMillis) {
+        this.maximumWaitMillis = maximumWaitMillis;
+    }
+}
@@ -0,0 +1,53 @@
+package com.manywho.services.backend.entities;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A parameterised SQL statement, along with the values to bind to each of its placeholders in order. A query created
+ * from a cached template already has its SQL, so building it again only collects the parameters.
+ */
+public class Query {
+    private final StringBuilder sql = new StringBuilder();
+    private final List<Object> parameters = new ArrayList<>();
+    private final String template;
+
+    public Query() {
+        this.template = null;
+    }
+
+    public Query(String template) {
+        this.template = template;
+    }
+
+    public Query append(String sql) {
+        if (this.template == null) {
+            this.sql.append(sql);
+        }
+
+        return this;
+    }
+
+    public Query append(String sql, Object parameter) {
+        this.append(sql);
+        this.parameters.add(parameter);
+
+        return this;
+    }
+
+    public boolean isTemplated() {
+        return template != null;
+    }
+
+    public String getSql() {
+        if (template != null) {
+            return template;
+        }
+
+        return sql.toString();
+    }
+
+    public List<Object> getParameters() {
+        return parameters;
+    }
+}
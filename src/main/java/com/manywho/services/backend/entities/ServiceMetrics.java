@@ -0,0 +1,54 @@
+package com.manywho.services.backend.entities;
+
+import java.util.List;
+
+/**
+ * Everything the service knows about how it's performing, in one response.
+ */
+public class ServiceMetrics {
+    private List<OperationMetrics> operations;
+    private List<PoolMetrics> pools;
+    private CacheMetrics cache;
+    private int activeRequests;
+    private int queuedRequests;
+
+    public List<OperationMetrics> getOperations() {
+        return operations;
+    }
+
+    public void setOperations(List<OperationMetrics> operations) {
+        this.operations = operations;
+    }
+
+    public List<PoolMetrics> getPools() {
+        return pools;
+    }
+
+    public void setPools(List<PoolMetrics> pools) {
+        this.pools = pools;
+    }
+
+    public CacheMetrics getCache() {
+        return cache;
+    }
+
+    public void setCache(CacheMetrics cache) {
+        this.cache = cache;
+    }
+
+    public int getActiveRequests() {
+        return activeRequests;
+    }
+
+    public void setActiveRequests(int activeRequests) {
+        this.activeRequests = activeRequests;
+    }
+
+    public int getQueuedRequests() {
+        return queuedRequests;
+    }
+
+    public void setQueuedRequests(int queuedRequests) {
+        this.queuedRequests = queuedRequests;
+    }
+}
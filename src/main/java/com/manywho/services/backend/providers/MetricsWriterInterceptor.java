@@ -0,0 +1,76 @@
+package com.manywho.services.backend.providers;
+
+import com.manywho.sdk.entities.run.elements.type.ObjectDataResponse;
+import com.manywho.services.backend.services.MetricsService;
+
+import javax.inject.Inject;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Records how long it takes to serialise object data responses, and how many bytes they come to. The tenant isn't
+ * known by the time the response is written, so the DataController keeps it with the request as a property.
+ */
+@Provider
+public class MetricsWriterInterceptor implements WriterInterceptor {
+    // The request property holding the tenant of the request, for the metrics of its response
+    public static final String TENANT_PROPERTY = "backend.tenantId";
+
+    @Inject
+    private MetricsService metricsService;
+
+    @Override
+    public void aroundWriteTo(WriterInterceptorContext context) throws IOException {
+        if (context.getEntity() instanceof ObjectDataResponse == false ||
+                this.metricsService.isEnabled() == false) {
+            context.proceed();
+
+            return;
+        }
+
+        ObjectDataResponse objectDataResponse = (ObjectDataResponse) context.getEntity();
+        String tenantId = (String) context.getProperty(TENANT_PROPERTY);
+        String typeName = null;
+
+        if (objectDataResponse.getObjectData() != null &&
+                objectDataResponse.getObjectData().size() > 0) {
+            typeName = objectDataResponse.getObjectData().get(0).getDeveloperName();
+        }
+
+        CountingOutputStream outputStream = new CountingOutputStream(context.getOutputStream());
+        context.setOutputStream(outputStream);
+
+        long start = this.metricsService.start();
+
+        try {
+            context.proceed();
+        } finally {
+            this.metricsService.recordTime(MetricsService.RESPONSE_SERIALISE, tenantId, typeName, start);
+            this.metricsService.recordPayloadSize(MetricsService.RESPONSE_SERIALISE, tenantId, typeName, outputStream.count);
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        private CountingOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.count += len;
+        }
+    }
+}
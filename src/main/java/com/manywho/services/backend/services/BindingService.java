@@ -1,8 +1,32 @@
 package com.manywho.services.backend.services;
 
 import com.manywho.sdk.entities.draw.elements.type.*;
+import com.manywho.sdk.enums.ContentType;
+import com.manywho.services.backend.configuration.Settings;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class BindingService {
+    // The names that have already passed validation. This is shared between instances of the service, as it's created
+    // for every request, and the same handful of type and property names are validated over and over again
+    private static final Set<String> VALID_NAMES = ConcurrentHashMap.newKeySet();
+
+    // The bindings already generated, keyed by a hash of everything in the type that the binding is generated from. The
+    // same types are sent every time a flow is published or the service is refreshed. A binding is never changed once
+    // it's been generated, so the same one can be handed out for every request
+    private static final Map<String, TypeElementBinding> BINDINGS = new ConcurrentHashMap<>();
+
+    // Leaves room for the longest suffix given to the index names of a table in the table storage mode, within the 63
+    // characters Postgres allows
+    private static final int MAXIMUM_TABLE_NAME_LENGTH = 50;
+    private static final int MAXIMUM_COLUMN_NAME_LENGTH = 63;
+
     public TypeElement generateBinding(TypeElement typeElement) throws Exception {
         if (typeElement == null) {
             throw new Exception("The TypeElement object cannot be null.");
@@ -23,54 +47,211 @@ public class BindingService {
             throw new Exception("The TypeElement.ServiceElementId property cannot be null or blank. This is needed so the service can bind fully to itself.");
         }
 
+        String key = this.getBindingKey(typeElement);
+        TypeElementBinding typeElementBinding = BINDINGS.get(key);
+
+        if (typeElementBinding == null) {
+            typeElementBinding = this.createBinding(typeElement);
+
+            // Unlike the valid names, which stop growing once they're full, the whole lot is thrown away rather than
+            // tracking which are used. Types change every time a flow is published, so new bindings must still be cached
+            if (BINDINGS.size() >= Settings.getInteger(Settings.BINDING_CACHE_SIZE, 1000)) {
+                BINDINGS.clear();
+            }
+
+            BINDINGS.put(key, typeElementBinding);
+        }
+
+        // The version has to be part of the type, or flows won't hold on to it between loading and saving an object
+        typeElement.setProperties(this.addVersionProperty(typeElement.getProperties()));
+
+        // Assign the binding to the type - removing any existing bindings
+        typeElement.setBindings(new TypeElementBindingCollection());
+        typeElement.getBindings().add(typeElementBinding);
+
+        // Remove the service element id from the Type as we don't want it to be managed by this service (as it will be
+        // deleted on a service refresh and also not be editable in the draw tool
+        typeElement.setServiceElementId(null);
+
+        return typeElement;
+    }
+
+    /**
+     * Gives back the properties with the one that loaded objects carry the version of their row in, unless they already
+     * have it. Flows only keep the properties declared in the type, so without it the version is dropped before the
+     * object is saved again, and the save overwrites any change made since the object was loaded. It's declared as a
+     * string, so the version is given back exactly as it was loaded. The properties are copied rather than added to, so
+     * the caller's collection is left as it was sent.
+     */
+    private TypeElementPropertyCollection addVersionProperty(TypeElementPropertyCollection typeElementProperties) {
+        for (TypeElementProperty typeElementProperty : typeElementProperties) {
+            if (MapperService.VERSION_PROPERTY.equals(typeElementProperty.getDeveloperName()) == true) {
+                return typeElementProperties;
+            }
+        }
+
+        TypeElementProperty versionProperty = new TypeElementProperty();
+        versionProperty.setDeveloperName(MapperService.VERSION_PROPERTY);
+        versionProperty.setContentType(ContentType.String);
+
+        TypeElementPropertyCollection properties = new TypeElementPropertyCollection();
+        properties.addAll(typeElementProperties);
+        properties.add(versionProperty);
+
+        return properties;
+    }
+
+    private TypeElementBinding createBinding(TypeElement typeElement) throws Exception {
         TypeElementBinding typeElementBinding = new TypeElementBinding();
         typeElementBinding.setDeveloperName(typeElement.getDeveloperName() + " Binding");
         typeElementBinding.setDeveloperSummary("The automatic binding created for " + typeElement.getDeveloperName());
-        typeElementBinding.setDatabaseTableName(this.generateSafeName(typeElement.getDeveloperName()));
+        typeElementBinding.setDatabaseTableName(this.getTableName(typeElement.getDeveloperName()));
         typeElementBinding.setPropertyBindings(new TypeElementPropertyBindingCollection());
         typeElementBinding.setServiceElementId(typeElement.getServiceElementId());
 
-        // Convert each of the properties over to bindings
+        // Convert each of the properties over to bindings. The version isn't a field of the row, as it's only carried by
+        // the objects, so it's left unbound
         for (TypeElementProperty typeElementProperty : typeElement.getProperties()) {
+            if (MapperService.VERSION_PROPERTY.equals(typeElementProperty.getDeveloperName()) == true) {
+                continue;
+            }
+
             TypeElementPropertyBinding typeElementPropertyBinding = new TypeElementPropertyBinding();
             typeElementPropertyBinding.setTypeElementPropertyId(typeElementProperty.getId());
             typeElementPropertyBinding.setDatabaseContentType(typeElementProperty.getContentType().toString());
-            typeElementPropertyBinding.setDatabaseFieldName(this.generateSafeName(typeElementProperty.getDeveloperName()));
+            typeElementPropertyBinding.setDatabaseFieldName(this.getColumnName(typeElementProperty.getDeveloperName()));
 
             typeElementBinding.getPropertyBindings().add(typeElementPropertyBinding);
         }
 
-        // Assign the binding to the type - removing any existing bindings
-        typeElement.setBindings(new TypeElementBindingCollection());
-        typeElement.getBindings().add(typeElementBinding);
+        return typeElementBinding;
+    }
 
-        // Remove the service element id from the Type as we don't want it to be managed by this service (as it will be
-        // deleted on a service refresh and also not be editable in the draw tool
-        typeElement.setServiceElementId(null);
+    private String getBindingKey(TypeElement typeElement) throws Exception {
+        StringBuilder content = new StringBuilder();
 
-        return typeElement;
+        this.appendPart(content, typeElement.getDeveloperName());
+        this.appendPart(content, typeElement.getServiceElementId());
+
+        // The version property is left out, as it isn't bound, so a type sent back with it gets the same binding
+        for (TypeElementProperty typeElementProperty : typeElement.getProperties()) {
+            if (MapperService.VERSION_PROPERTY.equals(typeElementProperty.getDeveloperName()) == true) {
+                continue;
+            }
+
+            this.appendPart(content, typeElementProperty.getId());
+            this.appendPart(content, typeElementProperty.getDeveloperName());
+            this.appendPart(content, typeElementProperty.getContentType() == null ? null : typeElementProperty.getContentType().toString());
+        }
+
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(content.toString().getBytes(StandardCharsets.UTF_8));
+
+        return Base64.getEncoder().encodeToString(hash);
     }
 
-    private String generateSafeName(String name) throws Exception {
+    private void appendPart(StringBuilder content, String part) {
+        // Length prefixed, so a property called "a:b" can't hash the same as two properties called "a" and "b"
+        if (part == null) {
+            content.append("-1:");
+        } else {
+            content.append(part.length()).append(':').append(part);
+        }
+    }
+
+    public String generateSafeName(String name) throws Exception {
         if (name == null ||
                 name.isEmpty() == true) {
             throw new Exception("The provided name cannot be made safe as it is null or empty.");
         }
 
-        // Replace all funny or blank characters with an underscore
-        name = name.replaceAll("[^A-Za-z0-9]", "_");
+        char[] characters = new char[name.length()];
+
+        for (int i = 0; i < name.length(); i++) {
+            char character = name.charAt(i);
+
+            if (character >= 'A' && character <= 'Z') {
+                // Make all of the characters lower case
+                characters[i] = (char) (character + ('a' - 'A'));
+            } else if ((character >= 'a' && character <= 'z') || (character >= '0' && character <= '9')) {
+                characters[i] = character;
+            } else {
+                // Replace all funny or blank characters with an underscore
+                characters[i] = '_';
+            }
+        }
+
+        return new String(characters);
+    }
+
+    /**
+     * Gets the name a type is bound to, which is the name objects of the type are given at runtime and the name of its
+     * table in the table storage mode. Giving back a name this has already generated gives back the same name, so the
+     * names objects arrive with can be passed straight through.
+     */
+    public String getTableName(String developerName) throws Exception {
+        return this.shortenName(this.generateSafeName(developerName), MAXIMUM_TABLE_NAME_LENGTH);
+    }
 
-        // Make all of the characters lower case
-        name = name.toLowerCase();
+    /**
+     * Gets the name a property is bound to, which is the name it's given at runtime and the name of its column in the
+     * table storage mode. Like the table names, giving back a name this has already generated gives back the same name.
+     */
+    public String getColumnName(String developerName) throws Exception {
+        return this.shortenName(this.generateSafeName(developerName), MAXIMUM_COLUMN_NAME_LENGTH);
+    }
+
+    private String shortenName(String name, int maximumLength) {
+        // Postgres would silently truncate long names, which could give two types the same table or two properties the
+        // same column, so we shorten them ourselves with a hash of the whole name
+        if (name.length() > maximumLength) {
+            return name.substring(0, maximumLength - 9) + "_" + String.format("%08x", name.hashCode());
+        }
 
         return name;
     }
 
     public void validateName(String name) throws Exception {
-        String pattern = "^[a-z0-9_]*$";
+        if (name != null &&
+                VALID_NAMES.contains(name) == true) {
+            return;
+        }
 
-        if (name.matches(pattern) == false) {
+        if (this.isSafeName(name) == false) {
             throw new Exception("The provided name is not valid. The name causing the fault is: " + name);
         }
+
+        // Once the cache is full we stop adding to it, rather than letting unusual names grow it forever
+        if (VALID_NAMES.size() < Settings.getInteger(Settings.BINDING_NAME_CACHE_SIZE, 10000)) {
+            VALID_NAMES.add(name);
+        }
+    }
+
+    public void validateUUID(String uuid) throws Exception {
+        try {
+            // Check to make sure the external identifier is a valid UUID
+            UUID.fromString(uuid);
+        } catch (IllegalArgumentException e) {
+            throw new Exception("The provided identifier is not valid. The value causing this error is: " + uuid);
+        }
+    }
+
+    /**
+     * Checks the name only contains lower case letters, numbers and underscores, which is what makes it safe to write
+     * into SQL.
+     */
+    private boolean isSafeName(String name) {
+        if (name == null) {
+            return false;
+        }
+
+        for (int i = 0; i < name.length(); i++) {
+            char character = name.charAt(i);
+
+            if ((character < 'a' || character > 'z') && (character < '0' || character > '9') && character != '_') {
+                return false;
+            }
+        }
+
+        return true;
     }
 }
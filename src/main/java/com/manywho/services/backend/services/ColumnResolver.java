@@ -0,0 +1,21 @@
+package com.manywho.services.backend.services;
+
+/**
+ * Tells the QueryService how to get at the value of a property in SQL, which depends on how the type is stored.
+ */
+public interface ColumnResolver {
+    /**
+     * The SQL expression that gives the value of the property.
+     */
+    String getExpression(String name) throws Exception;
+
+    /**
+     * The SQL type of the property's column, or null if the value is held as text in json.
+     */
+    String getType(String name) throws Exception;
+
+    /**
+     * The SQL tsvector expression that the properties can be searched with, or null if they can't be searched.
+     */
+    String getSearchExpression();
+}
@@ -0,0 +1,396 @@
+package com.manywho.services.backend.services;
+
+import com.manywho.services.backend.configuration.Configuration;
+import com.manywho.services.backend.configuration.Settings;
+import com.manywho.services.backend.entities.PoolMetrics;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import com.zaxxer.hikari.pool.HikariPool;
+
+import javax.annotation.PreDestroy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Holds one bounded connection pool per database (url, username and password) that the service has been configured
+ * to talk to. This service must be bound as a singleton, otherwise every request would get its own set of pools.
+ */
+public class ConnectionPoolService {
+    private static final AtomicInteger POOL_COUNTER = new AtomicInteger();
+
+    // The prepared transactions of parallel saves are named with this, followed by the id of the instance that prepared
+    // them, so the transactions left behind by a save can be told apart from everything else in pg_prepared_xacts, and
+    // traced back to the instance that left them
+    private static final String PREPARED_TRANSACTION_PREFIX = "backend-save-";
+
+    // The name of a prepared transaction ends with its partition of the save, and how many partitions the save has
+    private static final Pattern PREPARED_TRANSACTION_PARTITION = Pattern.compile("^(.*)-([0-9]+)-of-([0-9]+)$");
+
+    private final Map<PoolKey, Pool> pools = new ConcurrentHashMap<>();
+    private final String instanceId = UUID.randomUUID().toString();
+    private final ScheduledExecutorService evictor;
+
+    public ConnectionPoolService() {
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "backend-pool-evictor");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+
+        // Pools for databases that haven't been used in a while (e.g. a tenant changed their password) are closed so
+        // we don't keep a housekeeping thread around per pool forever
+        this.evictor.scheduleWithFixedDelay(this::evictIdlePools, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public Connection getConnection(Configuration configuration) throws Exception {
+        return this.getConnection(configuration.getUrl(), configuration.getUsername(), configuration.getPassword());
+    }
+
+    public Connection getConnection(String url, String username, String password) throws Exception {
+        PoolKey poolKey = new PoolKey(url, username, password);
+
+        // The pool may have been evicted between us finding it and borrowing from it, so we try again with a new pool
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Pool pool = this.pools.computeIfAbsent(poolKey, this::createPool);
+
+            try {
+                return pool.borrow();
+            } catch (SQLTransientConnectionException e) {
+                throw new Exception("A connection to the database could not be acquired within " + Settings.getLong(Settings.POOL_CONNECTION_TIMEOUT, 5000) + "ms. The connection pool for " + poolKey.url + " is exhausted or the database is unavailable: " + e.getMessage());
+            } catch (SQLException e) {
+                if (pool.dataSource.isClosed() == false) {
+                    throw e;
+                }
+            }
+        }
+
+        throw new Exception("A connection to the database could not be acquired as the connection pool for " + poolKey.url + " was closed.");
+    }
+
+    /**
+     * Borrows another connection to a database we already have a pool for, but only if the pool can hand one out within
+     * the given timeout, rather than the full connection timeout. Returns null if it can't, for callers that can carry
+     * on without the extra connection.
+     */
+    public Connection getSpareConnection(Configuration configuration, long timeout) {
+        Pool pool = this.pools.get(new PoolKey(configuration.getUrl(), configuration.getUsername(), configuration.getPassword()));
+
+        if (pool == null) {
+            return null;
+        }
+
+        return pool.tryBorrow(timeout);
+    }
+
+    /**
+     * Gets the start of the name of every prepared transaction made by this instance.
+     */
+    public String getPreparedTransactionPrefix() {
+        return PREPARED_TRANSACTION_PREFIX + this.instanceId + "-";
+    }
+
+    /**
+     * Checks if the database allows prepared transactions (max_prepared_transactions is 0 by default), asking it only
+     * once per pool, as the setting can only be changed by restarting the database.
+     */
+    public boolean supportsPreparedTransactions(Configuration configuration, Connection connection) throws SQLException {
+        Pool pool = this.pools.get(new PoolKey(configuration.getUrl(), configuration.getUsername(), configuration.getPassword()));
+
+        if (pool != null &&
+                pool.preparedTransactions != null) {
+            return pool.preparedTransactions;
+        }
+
+        boolean preparedTransactions;
+
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SHOW max_prepared_transactions")) {
+            preparedTransactions = resultSet.next() == true && Integer.parseInt(resultSet.getString(1)) > 0;
+        }
+
+        if (pool != null) {
+            pool.preparedTransactions = preparedTransactions;
+        }
+
+        return preparedTransactions;
+    }
+
+    /**
+     * Gets how many connections are in use or being waited for in the pool for the database, which is 0 if there isn't
+     * a pool for it yet.
+     */
+    public int getLoad(String url, String username, String password) {
+        Pool pool = this.pools.get(new PoolKey(url, username, password));
+
+        if (pool == null) {
+            return 0;
+        }
+
+        HikariPoolMXBean poolBean = pool.dataSource.getHikariPoolMXBean();
+
+        if (poolBean == null) {
+            return 0;
+        }
+
+        return poolBean.getActiveConnections() + poolBean.getThreadsAwaitingConnection();
+    }
+
+    public List<PoolMetrics> getMetrics() {
+        List<PoolMetrics> metrics = new ArrayList<>();
+
+        for (Pool pool : this.pools.values()) {
+            metrics.add(pool.snapshot());
+        }
+
+        return metrics;
+    }
+
+    @PreDestroy
+    public void close() {
+        this.evictor.shutdownNow();
+
+        for (PoolKey poolKey : this.pools.keySet()) {
+            Pool pool = this.pools.remove(poolKey);
+
+            if (pool != null) {
+                pool.dataSource.close();
+            }
+        }
+    }
+
+    private Pool createPool(PoolKey poolKey) {
+        HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setPoolName("backend-" + POOL_COUNTER.incrementAndGet());
+        hikariConfig.setJdbcUrl(poolKey.url);
+        hikariConfig.setUsername(poolKey.username);
+        hikariConfig.setPassword(poolKey.password);
+        hikariConfig.setMaximumPoolSize(Settings.getInteger(Settings.POOL_MAXIMUM_SIZE, 10));
+        hikariConfig.setMinimumIdle(Settings.getInteger(Settings.POOL_MINIMUM_IDLE, 0));
+        hikariConfig.setIdleTimeout(Settings.getLong(Settings.POOL_IDLE_TIMEOUT, TimeUnit.MINUTES.toMillis(5)));
+        hikariConfig.setConnectionTimeout(Settings.getLong(Settings.POOL_CONNECTION_TIMEOUT, 5000));
+        hikariConfig.setMaxLifetime(Settings.getLong(Settings.POOL_MAXIMUM_LIFETIME, TimeUnit.MINUTES.toMillis(30)));
+
+        // Connections are validated (using the JDBC4 isValid check) when they are borrowed after sitting idle, and this
+        // is how long we give the database to answer that check
+        hikariConfig.setValidationTimeout(Settings.getLong(Settings.POOL_VALIDATION_TIMEOUT, 1000));
+
+        // Have the driver switch to server side prepared statements quickly, and keep them around per connection, as the
+        // QueryService sends the same SQL for every query of the same shape
+        hikariConfig.addDataSourceProperty("prepareThreshold", Settings.getInteger(Settings.POOL_PREPARE_THRESHOLD, 2));
+        hikariConfig.addDataSourceProperty("preparedStatementCacheQueries", Settings.getInteger(Settings.POOL_STATEMENT_CACHE_SIZE, 256));
+
+        Pool pool = new Pool(new HikariDataSource(hikariConfig));
+
+        // Done in the background, as the pool is created while the map of pools is locked
+        this.evictor.execute(() -> this.finishOrphanedTransactions(pool));
+
+        return pool;
+    }
+
+    /**
+     * Finishes the prepared transactions left behind by parallel saves of instances that died between preparing and
+     * committing them, as they hold on to the locks of their rows until they're finished. Only transactions prepared
+     * longer ago than any save takes to commit them are finished, as the rest may still be committed by the instance
+     * that prepared them.
+     *
+     * Every partition of a save is prepared before any are committed, and they're committed in order, so if the last
+     * partition was prepared, the save was being committed and the rest of it is committed too. Otherwise the save
+     * failed before it was fully prepared, and what's left is rolled back. A prepared transaction can only be finished
+     * in its own database, by the user that prepared it, so every pool cleans up after its own database and user.
+     */
+    private void finishOrphanedTransactions(Pool pool) {
+        List<String> transactionIds = new ArrayList<>();
+        Set<String> committedSaves = new HashSet<>();
+
+        try (Connection connection = pool.dataSource.getConnection()) {
+            try (PreparedStatement preparedStatement = connection.prepareStatement(
+                    "SELECT gid FROM pg_prepared_xacts " +
+                    "WHERE database = current_database() AND owner = current_user AND gid LIKE ? " +
+                    "AND prepared < now() - CAST(? AS interval)"
+            )) {
+                preparedStatement.setString(1, PREPARED_TRANSACTION_PREFIX + "%");
+                preparedStatement.setString(2, Settings.getLong(Settings.SAVE_ORPHAN_TIMEOUT, TimeUnit.MINUTES.toMillis(5)) + " milliseconds");
+
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        String transactionId = resultSet.getString(1);
+                        Matcher matcher = PREPARED_TRANSACTION_PARTITION.matcher(transactionId);
+
+                        if (matcher.matches() == true &&
+                                Long.parseLong(matcher.group(2)) == Long.parseLong(matcher.group(3)) - 1) {
+                            committedSaves.add(matcher.group(1));
+                        }
+
+                        transactionIds.add(transactionId);
+                    }
+                }
+            }
+
+            for (String transactionId : transactionIds) {
+                Matcher matcher = PREPARED_TRANSACTION_PARTITION.matcher(transactionId);
+                boolean commit = matcher.matches() == true && committedSaves.contains(matcher.group(1)) == true;
+
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute((commit == true ? "COMMIT PREPARED '" : "ROLLBACK PREPARED '") + transactionId.replace("'", "''") + "'");
+                } catch (SQLException e) {
+                    // Another instance may have finished it first
+                }
+            }
+        } catch (SQLException e) {
+            // The database may not be up yet, in which case the orphans are finished when the pool is next created
+        }
+    }
+
+    private void evictIdlePools() {
+        long evictionTimeout = Settings.getLong(Settings.POOL_EVICTION_TIMEOUT, TimeUnit.MINUTES.toMillis(30));
+
+        for (Map.Entry<PoolKey, Pool> entry : this.pools.entrySet()) {
+            Pool pool = entry.getValue();
+            HikariPoolMXBean poolBean = pool.dataSource.getHikariPoolMXBean();
+
+            if (System.currentTimeMillis() - pool.lastUsed > evictionTimeout &&
+                    (poolBean == null || poolBean.getActiveConnections() == 0)) {
+                if (this.pools.remove(entry.getKey(), pool) == true) {
+                    pool.dataSource.close();
+                }
+            }
+        }
+    }
+
+    private static class Pool {
+        private final HikariDataSource dataSource;
+        private final LongAdder acquisitions = new LongAdder();
+        private final LongAdder acquisitionTimeouts = new LongAdder();
+        private final LongAdder totalWaitNanos = new LongAdder();
+        private final AtomicLong maximumWaitNanos = new AtomicLong();
+        private volatile long lastUsed = System.currentTimeMillis();
+        private volatile Boolean preparedTransactions;
+
+        private Pool(HikariDataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        private Connection borrow() throws SQLException {
+            this.lastUsed = System.currentTimeMillis();
+
+            long start = System.nanoTime();
+
+            try {
+                return this.dataSource.getConnection();
+            } catch (SQLTransientConnectionException e) {
+                this.acquisitionTimeouts.increment();
+
+                throw e;
+            } finally {
+                long waited = System.nanoTime() - start;
+
+                this.acquisitions.increment();
+                this.totalWaitNanos.add(waited);
+                this.maximumWaitNanos.accumulateAndGet(waited, Math::max);
+            }
+        }
+
+        private Connection tryBorrow(long timeout) {
+            HikariPoolMXBean poolBean = this.dataSource.getHikariPoolMXBean();
+
+            // The data source only borrows with the pool's connection timeout, but the pool behind it takes its own
+            if (poolBean instanceof HikariPool == false) {
+                return null;
+            }
+
+            this.lastUsed = System.currentTimeMillis();
+
+            try {
+                Connection connection = ((HikariPool) poolBean).getConnection(timeout);
+
+                this.acquisitions.increment();
+
+                return connection;
+            } catch (SQLException e) {
+                return null;
+            }
+        }
+
+        private PoolMetrics snapshot() {
+            PoolMetrics poolMetrics = new PoolMetrics();
+            poolMetrics.setPoolName(this.dataSource.getPoolName());
+
+            HikariPoolMXBean poolBean = this.dataSource.getHikariPoolMXBean();
+
+            if (poolBean != null) {
+                poolMetrics.setActiveConnections(poolBean.getActiveConnections());
+                poolMetrics.setIdleConnections(poolBean.getIdleConnections());
+                poolMetrics.setTotalConnections(poolBean.getTotalConnections());
+                poolMetrics.setThreadsAwaitingConnection(poolBean.getThreadsAwaitingConnection());
+            }
+
+            long acquisitions = this.acquisitions.sum();
+
+            poolMetrics.setAcquisitions(acquisitions);
+            poolMetrics.setAcquisitionTimeouts(this.acquisitionTimeouts.sum());
+            poolMetrics.setMaximumWaitMillis(this.maximumWaitNanos.get() / 1000000.0);
+
+            if (acquisitions > 0) {
+                poolMetrics.setAverageWaitMillis(this.totalWaitNanos.sum() / 1000000.0 / acquisitions);
+            }
+
+            return poolMetrics;
+        }
+    }
+
+    private static class PoolKey {
+        private final String url;
+        private final String username;
+        private final String password;
+
+        private PoolKey(String url, String username, String password) {
+            this.url = url;
+            this.username = username;
+            this.password = password;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+
+            if (other == null || getClass() != other.getClass()) {
+                return false;
+            }
+
+            PoolKey poolKey = (PoolKey) other;
+
+            return Objects.equals(this.url, poolKey.url) &&
+                    Objects.equals(this.username, poolKey.username) &&
+                    Objects.equals(this.password, poolKey.password);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.url, this.username, this.password);
+        }
+    }
+}
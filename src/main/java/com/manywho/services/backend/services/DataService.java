@@ -1,20 +1,104 @@
 package com.manywho.services.backend.services;
 
+import com.manywho.sdk.entities.run.elements.type.Object;
 import com.manywho.sdk.entities.run.elements.type.ObjectCollection;
 import com.manywho.sdk.entities.run.elements.type.ObjectDataRequest;
 import com.manywho.sdk.entities.run.elements.type.ObjectDataResponse;
 import com.manywho.sdk.entities.security.AuthenticatedWho;
 import com.manywho.services.backend.configuration.Configuration;
+import com.manywho.services.backend.entities.ObjectPage;
 
 import javax.inject.Inject;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
 
 public class DataService {
     @Inject
     private DatabaseService databaseService;
 
+    @Inject
+    private TableStorageService tableStorageService;
+
+    @Inject
+    private LoadCacheService loadCacheService;
+
+    @Inject
+    private MetricsService metricsService;
+
+    @Inject
+    private ReplicaService replicaService;
+
+    @Inject
+    private LoadCoalescingService loadCoalescingService;
+
     public ObjectDataResponse load(AuthenticatedWho authenticatedWho, Configuration configuration, ObjectDataRequest objectDataRequest) throws Exception {
+        return this.execute(MetricsService.LOAD, authenticatedWho, objectDataRequest, () -> this.executeLoad(authenticatedWho, configuration, objectDataRequest), ObjectDataResponse::getObjectData);
+    }
+
+    public ObjectPage loadPage(AuthenticatedWho authenticatedWho, Configuration configuration, ObjectDataRequest objectDataRequest, String continuationToken) throws Exception {
+        return this.execute(MetricsService.LOAD, authenticatedWho, objectDataRequest, () -> this.executeLoadPage(authenticatedWho, configuration, objectDataRequest, continuationToken), ObjectPage::getObjectData);
+    }
+
+    public ObjectDataResponse save(AuthenticatedWho authenticatedWho, Configuration configuration, ObjectDataRequest objectDataRequest) throws Exception {
+        return this.execute(MetricsService.SAVE, authenticatedWho, objectDataRequest, () -> this.executeSave(authenticatedWho, configuration, objectDataRequest), ObjectDataResponse::getObjectData);
+    }
+
+    public ObjectDataResponse delete(AuthenticatedWho authenticatedWho, Configuration configuration, ObjectDataRequest objectDataRequest) throws Exception {
+        return this.execute(MetricsService.DELETE, authenticatedWho, objectDataRequest, () -> this.executeDelete(authenticatedWho, configuration, objectDataRequest), ObjectDataResponse::getObjectData);
+    }
+
+    /**
+     * Runs the operation, recording how long it took, how many objects it returned and whether it failed.
+     */
+    private <T> T execute(String operation, AuthenticatedWho authenticatedWho, ObjectDataRequest objectDataRequest, Callable<T> callable, Function<T, ObjectCollection> objectData) throws Exception {
+        String tenantId = authenticatedWho == null ? null : authenticatedWho.getManyWhoTenantId();
+        String typeName = objectDataRequest == null || objectDataRequest.getObjectDataType() == null ? null : objectDataRequest.getObjectDataType().getDeveloperName();
+        long start = this.metricsService.start();
+
+        try {
+            T result = callable.call();
+            ObjectCollection objectCollection = objectData.apply(result);
+
+            if (objectCollection != null) {
+                this.metricsService.recordRows(operation, tenantId, typeName, objectCollection.size());
+            }
+
+            return result;
+        } catch (Exception e) {
+            this.metricsService.recordError(operation, tenantId, typeName);
+
+            throw e;
+        } finally {
+            this.metricsService.recordTime(operation, tenantId, typeName, start);
+        }
+    }
+
+    private Connection getConnection(String operation, AuthenticatedWho authenticatedWho, Configuration configuration, ObjectDataRequest objectDataRequest) throws Exception {
+        long start = this.metricsService.start();
+
+        try {
+            // Loads are the only operation that can be sent to a read replica
+            if (operation.equals(MetricsService.LOAD_ACQUIRE) == true) {
+                return this.databaseService.getReadConnection(configuration, authenticatedWho);
+            }
+
+            return this.databaseService.getConnection(configuration);
+        } finally {
+            this.metricsService.recordTime(
+                    operation,
+                    authenticatedWho.getManyWhoTenantId(),
+                    objectDataRequest.getObjectDataType() == null ? null : objectDataRequest.getObjectDataType().getDeveloperName(),
+                    start
+            );
+        }
+    }
+
+    private ObjectDataResponse executeLoad(AuthenticatedWho authenticatedWho, Configuration configuration, ObjectDataRequest objectDataRequest) throws Exception {
         if (authenticatedWho == null) {
             throw new Exception(("The AuthenticatedWho object cannot be null."));
         }
@@ -31,14 +115,67 @@ public class DataService {
         ObjectDataResponse objectDataResponse = new ObjectDataResponse();
         objectDataResponse.setCulture(objectDataRequest.getCulture());
 
+        // Identical loads that were made recently are answered from the cache, without touching the database
+        String cacheKey = null;
+        long cacheGeneration = 0;
+
+        if (this.loadCacheService.isEnabled() == true &&
+                objectDataRequest.getObjectDataType() != null &&
+                objectDataRequest.getObjectDataType().getDeveloperName() != null) {
+            cacheKey = this.loadCacheService.getKey(configuration, authenticatedWho, objectDataRequest);
+            cacheGeneration = this.loadCacheService.getGeneration(configuration, authenticatedWho);
+
+            ObjectCollection objectCollection = this.loadCacheService.get(cacheKey);
+
+            if (objectCollection != null) {
+                objectDataResponse.setObjectData(objectCollection);
+
+                return objectDataResponse;
+            }
+        }
+
+        // Identical loads that are already running are shared, rather than each running the same query at once
+        if (this.loadCoalescingService.isEnabled() == true &&
+                objectDataRequest.getObjectDataType() != null &&
+                objectDataRequest.getObjectDataType().getDeveloperName() != null) {
+            String key = cacheKey != null ? cacheKey : this.loadCacheService.getKey(configuration, authenticatedWho, objectDataRequest);
+            long generation = cacheKey != null ? cacheGeneration : this.loadCacheService.getGeneration(configuration, authenticatedWho);
+            String finalCacheKey = cacheKey;
+
+            // The generation is part of the key, so a load never shares one that started before the tenant's last write
+            key += generation;
+
+            objectDataResponse.setObjectData(this.loadCoalescingService.execute(
+                    key,
+                    authenticatedWho.getManyWhoTenantId(),
+                    objectDataRequest.getObjectDataType().getDeveloperName(),
+                    () -> this.executeObjectLoad(authenticatedWho, configuration, objectDataRequest, finalCacheKey, generation)
+            ));
+        } else {
+            objectDataResponse.setObjectData(this.executeObjectLoad(authenticatedWho, configuration, objectDataRequest, cacheKey, cacheGeneration));
+        }
+
+        return objectDataResponse;
+    }
+
+    private ObjectCollection executeObjectLoad(AuthenticatedWho authenticatedWho, Configuration configuration, ObjectDataRequest objectDataRequest, String cacheKey, long cacheGeneration) throws Exception {
+        ObjectCollection objectCollection;
         Connection connection = null;
 
         try {
             // Construct and execute the query on the backend
-            connection = this.databaseService.getConnection(configuration);
+            connection = this.getConnection(MetricsService.LOAD_ACQUIRE, authenticatedWho, configuration, objectDataRequest);
+
+            // Load the objects based on the object data request, from wherever the type is stored
+            if (configuration.isTableStorage() == true) {
+                objectCollection = this.tableStorageService.executeObjectLoad(authenticatedWho, connection, objectDataRequest);
+            } else {
+                objectCollection = this.databaseService.executeObjectLoad(authenticatedWho, configuration, connection, objectDataRequest);
+            }
 
-            // Set the object data based on the object data request
-            objectDataResponse.setObjectData(this.databaseService.executeObjectLoad(authenticatedWho, connection, objectDataRequest));
+            if (cacheKey != null) {
+                this.loadCacheService.put(configuration, authenticatedWho, objectDataRequest, cacheKey, cacheGeneration, objectCollection);
+            }
         } catch (SQLException e) {
             throw e;
         } finally {
@@ -51,10 +188,47 @@ public class DataService {
             }
         }
 
-        return objectDataResponse;
+        return objectCollection;
     }
 
-    public ObjectDataResponse save(AuthenticatedWho authenticatedWho, Configuration configuration, ObjectDataRequest objectDataRequest) throws Exception {
+    private ObjectPage executeLoadPage(AuthenticatedWho authenticatedWho, Configuration configuration, ObjectDataRequest objectDataRequest, String continuationToken) throws Exception {
+        if (authenticatedWho == null) {
+            throw new Exception(("The AuthenticatedWho object cannot be null."));
+        }
+
+        if (configuration == null) {
+            throw new Exception(("The Configuration object cannot be null."));
+        }
+
+        if (objectDataRequest == null) {
+            throw new Exception("The ObjectDataRequest object cannot be null.");
+        }
+
+        if (configuration.isTableStorage() == true) {
+            throw new Exception("Objects can only be loaded by page in the json storage mode.");
+        }
+
+        Connection connection = null;
+
+        try {
+            connection = this.getConnection(MetricsService.LOAD_ACQUIRE, authenticatedWho, configuration, objectDataRequest);
+
+            // Pages aren't cached or shared, as the position they start from is different for every caller
+            return this.databaseService.executeObjectPageLoad(authenticatedWho, configuration, connection, objectDataRequest, continuationToken);
+        } catch (SQLException e) {
+            throw e;
+        } finally {
+            try {
+                if (connection != null) {
+                    connection.close();
+                }
+            } catch (SQLException e) {
+                throw e;
+            }
+        }
+    }
+
+    private ObjectDataResponse executeSave(AuthenticatedWho authenticatedWho, Configuration configuration, ObjectDataRequest objectDataRequest) throws Exception {
         if (authenticatedWho == null) {
             throw new Exception(("The AuthenticatedWho object cannot be null."));
         }
@@ -96,10 +270,19 @@ public class DataService {
 
         try {
             // Construct and execute the query on the backend
-            connection = this.databaseService.getConnection(configuration);
+            connection = this.getConnection(MetricsService.SAVE_ACQUIRE, authenticatedWho, configuration, objectDataRequest);
+
+            // Execute the save across all objects in the hierarchy, returning the saved objects so the caller gets their
+            // ids and the versions their rows are now at
+            if (configuration.isTableStorage() == true) {
+                objectDataResponse.setObjectData(this.tableStorageService.executeObjectSave(authenticatedWho, connection, null, objectDataRequest.getObjectData()));
+            } else {
+                objectDataResponse.setObjectData(this.databaseService.executeObjectSave(authenticatedWho, configuration, connection, null, objectDataRequest.getObjectData()));
+            }
 
-            // Execute the save across all objects in the hierarchy
-            this.databaseService.executeObjectSave(authenticatedWho, connection, null, objectDataRequest.getObjectData());
+            // Any cached loads that contain the saved types are now out of date, as are the replicas for a while
+            this.loadCacheService.invalidate(configuration, authenticatedWho, objectDataRequest.getObjectData());
+            this.replicaService.recordWrite(configuration, authenticatedWho);
         } catch (SQLException e) {
             throw e;
         } finally {
@@ -114,4 +297,78 @@ public class DataService {
 
         return objectDataResponse;
     }
+
+    private ObjectDataResponse executeDelete(AuthenticatedWho authenticatedWho, Configuration configuration, ObjectDataRequest objectDataRequest) throws Exception {
+        if (authenticatedWho == null) {
+            throw new Exception(("The AuthenticatedWho object cannot be null."));
+        }
+
+        if (configuration == null) {
+            throw new Exception(("The Configuration object cannot be null."));
+        }
+
+        if (objectDataRequest == null) {
+            throw new Exception("The ObjectDataRequest object cannot be null.");
+        }
+
+        if (configuration.isTableStorage() == true &&
+                configuration.isCascadeDeletes() == true) {
+            throw new Exception("Deletes cannot be cascaded in the table storage mode, as child objects are stored in the tables for their own types.");
+        }
+
+        // Construct the object data response as we should always return that unless there are errors
+        ObjectDataResponse objectDataResponse = new ObjectDataResponse();
+        objectDataResponse.setCulture(objectDataRequest.getCulture());
+        objectDataResponse.setObjectData(new ObjectCollection());
+
+        // If we don't have any object data to delete, we simply return an empty response
+        if (objectDataRequest.getObjectData() == null ||
+                objectDataRequest.getObjectData().size() == 0) {
+            return objectDataResponse;
+        }
+
+        Connection connection = null;
+        List<String> deletedIds;
+
+        try {
+            // Construct and execute the query on the backend
+            connection = this.getConnection(MetricsService.DELETE_ACQUIRE, authenticatedWho, configuration, objectDataRequest);
+
+            if (configuration.isTableStorage() == true) {
+                deletedIds = this.tableStorageService.executeObjectDelete(authenticatedWho, connection, objectDataRequest.getObjectData());
+            } else {
+                deletedIds = this.databaseService.executeObjectDelete(authenticatedWho, connection, objectDataRequest.getObjectData(), configuration.isCascadeDeletes());
+            }
+
+            // Cascaded deletes can remove objects of any type, so every cached load for the tenant is dropped
+            if (configuration.isCascadeDeletes() == true) {
+                this.loadCacheService.invalidateAll(configuration, authenticatedWho);
+            } else {
+                this.loadCacheService.invalidate(configuration, authenticatedWho, objectDataRequest.getObjectData());
+            }
+
+            this.replicaService.recordWrite(configuration, authenticatedWho);
+        } catch (SQLException e) {
+            throw e;
+        } finally {
+            try {
+                if (connection != null) {
+                    connection.close();
+                }
+            } catch (SQLException e) {
+                throw e;
+            }
+        }
+
+        // Respond with the requested objects that were actually deleted, leaving out any that didn't exist
+        Set<String> deleted = new HashSet<>(deletedIds);
+
+        for (Object object : objectDataRequest.getObjectData()) {
+            if (deleted.contains(object.getExternalId()) == true) {
+                objectDataResponse.getObjectData().add(object);
+            }
+        }
+
+        return objectDataResponse;
+    }
 }
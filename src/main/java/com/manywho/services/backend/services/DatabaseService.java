@@ -1,24 +1,107 @@
 package com.manywho.services.backend.services;
 
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
 import com.manywho.sdk.entities.run.elements.type.*;
 import com.manywho.sdk.entities.run.elements.type.Object;
 import com.manywho.sdk.entities.security.AuthenticatedWho;
-import com.manywho.sdk.enums.CriteriaType;
 import com.manywho.services.backend.configuration.Configuration;
+import com.manywho.services.backend.configuration.Settings;
+import com.manywho.services.backend.entities.Keyset;
+import com.manywho.services.backend.entities.ObjectPage;
+import com.manywho.services.backend.entities.ObjectRow;
+import com.manywho.services.backend.entities.Query;
 import org.json.JSONObject;
 
 import javax.inject.Inject;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DatabaseService {
+    private static final StorageCodec JSONB_CODEC = new JsonbStorageCodec();
+    private static final StorageCodec SMILE_CODEC = new SmileStorageCodec();
+
     @Inject
     private MapperService mapperService;
 
     @Inject
     private BindingService bindingService;
 
+    @Inject
+    private ConnectionPoolService connectionPoolService;
+
+    @Inject
+    private QueryService queryService;
+
+    @Inject
+    private SchemaService schemaService;
+
+    @Inject
+    private ReplicaService replicaService;
+
+    @Inject
+    private ExecutionService executionService;
+
+    @Inject
+    private MetricsService metricsService;
+
+    @Inject
+    private LoadCacheService loadCacheService;
+
     public Connection getConnection(Configuration configuration) throws Exception {
+        this.validateConfiguration(configuration);
+
+        // Borrow a connection from the pool for this database, rather than opening a new one for every request
+        Connection connection = this.connectionPoolService.getConnection(configuration);
+
+        try {
+            // Make sure the database has the schema we expect, which is only checked the first time we see the database
+            this.schemaService.ensureSchema(configuration, connection);
+        } catch (Exception e) {
+            connection.close();
+
+            throw e;
+        }
+
+        return connection;
+    }
+
+    /**
+     * Gets a connection to read the tenant's objects with, which is to one of the read replicas if any are configured
+     * and up. Replicas can't be written to, so the primary is used until it's been migrated and the tenant's rows have
+     * been converted to its Storage Format, which happens the first time the tenant's objects are read from it.
+     */
+    public Connection getReadConnection(Configuration configuration, AuthenticatedWho authenticatedWho) throws Exception {
+        this.validateConfiguration(configuration);
+
+        StorageCodec codec = null;
+
+        if (configuration.isTableStorage() == false) {
+            codec = configuration.isSmileFormat() == true ? SMILE_CODEC : JSONB_CODEC;
+        }
+
+        if (configuration.getReplicaUrls().isEmpty() == false &&
+                this.schemaService.isReady(configuration, authenticatedWho.getManyWhoTenantId(), codec) == true) {
+            Connection connection = this.replicaService.getConnection(configuration, authenticatedWho);
+
+            if (connection != null) {
+                return connection;
+            }
+        }
+
+        return this.getConnection(configuration);
+    }
+
+    private void validateConfiguration(Configuration configuration) throws Exception {
         if (configuration == null) {
             throw new Exception(("The Configuration object cannot be null."));
         }
@@ -38,10 +121,41 @@ public class DatabaseService {
             throw new Exception("The Configuration.Password property cannot be null or blank.");
         }
 
-        return DriverManager.getConnection(configuration.getUrl(), configuration.getUsername(), configuration.getPassword());
+        if (configuration.getStorageMode() != null &&
+                configuration.getStorageMode().isEmpty() == false &&
+                configuration.getStorageMode().equalsIgnoreCase(Configuration.STORAGE_MODE_JSON) == false &&
+                configuration.getStorageMode().equalsIgnoreCase(Configuration.STORAGE_MODE_TABLE) == false) {
+            throw new Exception("The Configuration.StorageMode property isn't valid. Please provide json, table or leave it blank.");
+        }
+
+        if (configuration.getStorageFormat() != null &&
+                configuration.getStorageFormat().isEmpty() == false) {
+            if (configuration.getStorageFormat().equalsIgnoreCase(Configuration.STORAGE_FORMAT_JSONB) == false &&
+                    configuration.getStorageFormat().equalsIgnoreCase(Configuration.STORAGE_FORMAT_SMILE) == false) {
+                throw new Exception("The Configuration.StorageFormat property isn't valid. Please provide jsonb, smile or leave it blank.");
+            }
+
+            if (configuration.isTableStorage() == true &&
+                    configuration.isSmileFormat() == true) {
+                throw new Exception("The Configuration.StorageFormat property cannot be smile in the table storage mode, as each property has its own column.");
+            }
+        }
+    }
+
+    /**
+     * Gets the codec the tenant's objects are stored with, first making sure none of them are still stored with the
+     * other one.
+     */
+    public StorageCodec getStorageCodec(AuthenticatedWho authenticatedWho, Configuration configuration, Connection connection) throws Exception {
+        StorageCodec codec = configuration.isSmileFormat() == true ? SMILE_CODEC : JSONB_CODEC;
+        StorageCodec otherCodec = configuration.isSmileFormat() == true ? JSONB_CODEC : SMILE_CODEC;
+
+        this.schemaService.ensureStorageFormat(configuration, authenticatedWho.getManyWhoTenantId(), connection, codec, otherCodec);
+
+        return codec;
     }
 
-    public ObjectCollection executeObjectSave(AuthenticatedWho authenticatedWho, Connection connection, String parentId, ObjectCollection objects) throws Exception {
+    public ObjectCollection executeObjectSave(AuthenticatedWho authenticatedWho, Configuration configuration, Connection connection, String parentId, ObjectCollection objects) throws Exception {
         if (authenticatedWho == null) {
             throw new Exception(("The AuthenticatedWho object cannot be null."));
         }
@@ -57,7 +171,7 @@ public class DatabaseService {
         if (parentId != null &&
                 parentId.isEmpty() == false) {
             // Validate the external identifier
-            this.validateUUID(parentId);
+            this.bindingService.validateUUID(parentId);
         }
 
         if (authenticatedWho.getManyWhoTenantId() == null ||
@@ -70,133 +184,696 @@ public class DatabaseService {
         // Make sure we have some objects to save
         if (objects != null &&
                 objects.size() > 0) {
-            // We have objects to save
-            objectCollection = new ObjectCollection();
-
-            // Go through the object data and convert to a json object
-            for (com.manywho.sdk.entities.run.elements.type.Object object : objects) {
-                JSONObject jsonObject = new JSONObject();
-                Object existingObject = null;
-
-                // Validate the object name is valid
-                this.bindingService.validateName(object.getDeveloperName());
-
-                // Check to see if this is an existing object
-                if (object.getExternalId() != null &&
-                        object.getExternalId().isEmpty() == false) {
-                    this.validateUUID(object.getExternalId());
-
-                    // Construct an object data request to load this specific object from the backend
-                    ObjectDataRequest objectDataRequest = new ObjectDataRequest();
-                    objectDataRequest.setObjectDataType(new ObjectDataType());
-                    objectDataRequest.getObjectDataType().setDeveloperName(object.getDeveloperName());
-                    objectDataRequest.setListFilter(new ListFilter());
-                    objectDataRequest.getListFilter().setId(object.getExternalId());
-
-                    // We also load the existing object as we'll need that for data integrity reasons
-                    ObjectCollection existingObjectCollection = this.executeObjectLoad(authenticatedWho, connection, objectDataRequest);
-
-                    if (existingObjectCollection != null &&
-                            existingObjectCollection.size() > 0) {
-                        if (existingObjectCollection.size() > 1) {
-                            throw new Exception("The provided external identifier returns more than one result. The identifier is: '" + object.getExternalId() + "'");
-                        }
-
-                        // Get the object from the collection
-                        existingObject = existingObjectCollection.get(0);
-                    }
-                } else {
-                    // Assign an id for this object as it's new
-                    object.setExternalId(UUID.randomUUID().toString());
+            // Flatten the whole hierarchy into rows first, so parents and children can be written together in batches
+            List<ObjectRow> objectRows = new ArrayList<>();
+            String typeName = objects.get(0).getDeveloperName();
+            long start = this.metricsService.start();
+
+            objectCollection = this.flattenObjects(authenticatedWho, parentId, null, objects, objectRows);
+
+            this.metricsService.recordTime(MetricsService.SAVE_FLATTEN, authenticatedWho.getManyWhoTenantId(), typeName, start);
+            this.metricsService.recordRows(MetricsService.SAVE_WRITE, authenticatedWho.getManyWhoTenantId(), typeName, objectRows.size());
+
+            if (this.metricsService.isEnabled() == true) {
+                long payloadSize = 0;
+
+                for (ObjectRow objectRow : objectRows) {
+                    payloadSize += objectRow.getData().length();
                 }
 
-                // Go through all of the properties and assign them into json object or save complex properties as child records
-                for (Property property : object.getProperties()) {
-                    // Validate the property name is valid
-                    this.bindingService.validateName(property.getDeveloperName());
-
-                    if (property.getObjectData() != null &&
-                            property.getObjectData().size() > 0) {
-                        // Repeat up the stack of objects as child objects are stored as separate records and are
-                        // therefore excluded from the json at this level
-                        this.executeObjectSave(authenticatedWho, connection, object.getExternalId(), property.getObjectData());
-                    } else {
-                        // Add the value to the json
-                        jsonObject.put(property.getDeveloperName(), property.getContentValue());
+                this.metricsService.recordPayloadSize(MetricsService.SAVE_WRITE, authenticatedWho.getManyWhoTenantId(), typeName, payloadSize);
+            }
+
+            StorageCodec codec = this.getStorageCodec(authenticatedWho, configuration, connection);
+
+            start = this.metricsService.start();
+
+            int parallelism = Settings.getInteger(Settings.SAVE_PARALLELISM, 1);
+            int batchSize = Settings.getInteger(Settings.SAVE_BATCH_SIZE, 100);
+
+            Map<String, Long> versions;
+
+            // Large saves can be split across several connections, but only when there's more than a batch for each
+            if (parallelism > 1 &&
+                    batchSize > 0 &&
+                    objectRows.size() > batchSize &&
+                    this.hasUniqueIds(objectRows) == true) {
+                versions = this.executeParallelRowSave(configuration, connection, codec, objectRows, Math.min(parallelism, (objectRows.size() + batchSize - 1) / batchSize));
+            } else {
+                // Write all of the rows in a single transaction
+                versions = this.executeRowSave(connection, codec, objectRows);
+            }
+
+            this.metricsService.recordTime(MetricsService.SAVE_WRITE, authenticatedWho.getManyWhoTenantId(), typeName, start);
+
+            // Existing objects saved without a version only find out which version their row is at once it's written
+            this.addVersions(objectCollection, versions);
+        }
+
+        return objectCollection;
+    }
+
+    /**
+     * Writes all of the rows in a single transaction, giving back the version each row written without a version to
+     * check against is now at, keyed by the row's id.
+     */
+    public Map<String, Long> executeRowSave(Connection connection, StorageCodec codec, List<ObjectRow> objectRows) throws Exception {
+        if (connection == null) {
+            throw new Exception("The Connection object cannot be null.");
+        }
+
+        Map<String, Long> versions = new HashMap<>();
+
+        if (objectRows == null ||
+                objectRows.size() == 0) {
+            return versions;
+        }
+
+        int batchSize = Settings.getInteger(Settings.SAVE_BATCH_SIZE, 100);
+
+        if (batchSize < 1) {
+            throw new Exception("The " + Settings.SAVE_BATCH_SIZE + " setting cannot be less than 1.");
+        }
+
+        boolean autoCommit = connection.getAutoCommit();
+
+        try {
+            connection.setAutoCommit(false);
+
+            this.writeRows(connection, codec, objectRows, batchSize, versions);
+
+            connection.commit();
+        } catch (Exception e) {
+            connection.rollback();
+
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+
+        return versions;
+    }
+
+    /**
+     * Splits the rows into partitions and writes each one on its own pooled connection at the same time. Each partition
+     * has its own transaction, which is prepared (with PREPARE TRANSACTION) once every partition has been written, and
+     * only committed once every partition has been prepared. A failure before then rolls back the whole save, and after
+     * then the database guarantees every partition can still be committed. Databases that don't allow prepared
+     * transactions (max_prepared_transactions is 0 by default) have the whole save written on the one connection. If
+     * this instance dies part way through, the transactions it prepared are finished when another instance next
+     * creates a pool for the database.
+     */
+    private Map<String, Long> executeParallelRowSave(Configuration configuration, Connection connection, StorageCodec codec, List<ObjectRow> objectRows, int partitions) throws Exception {
+        if (this.connectionPoolService.supportsPreparedTransactions(configuration, connection) == false) {
+            return this.executeRowSave(connection, codec, objectRows);
+        }
+
+        int batchSize = Settings.getInteger(Settings.SAVE_BATCH_SIZE, 100);
+        List<Connection> connections = new ArrayList<>();
+        connections.add(connection);
+
+        // Only use as many extra connections as the pool can hand out almost straight away, falling back to fewer
+        // partitions, so a busy pool never holds up a save for the whole connection timeout
+        long acquireTimeout = Settings.getLong(Settings.SAVE_ACQUIRE_TIMEOUT, 50);
+
+        for (int i = 1; i < partitions; i++) {
+            Connection partitionConnection = this.connectionPoolService.getSpareConnection(configuration, acquireTimeout);
+
+            if (partitionConnection == null) {
+                break;
+            }
+
+            connections.add(partitionConnection);
+        }
+
+        if (connections.size() == 1) {
+            return this.executeRowSave(connection, codec, objectRows);
+        }
+
+        List<Boolean> autoCommits = new ArrayList<>();
+        Map<String, Long> versions = new ConcurrentHashMap<>();
+
+        try {
+            List<Callable<Void>> writes = new ArrayList<>();
+            int partitionSize = (objectRows.size() + connections.size() - 1) / connections.size();
+
+            for (int i = 0; i < connections.size(); i++) {
+                Connection partitionConnection = connections.get(i);
+                List<ObjectRow> partitionRows = objectRows.subList(Math.min(i * partitionSize, objectRows.size()), Math.min((i + 1) * partitionSize, objectRows.size()));
+
+                autoCommits.add(partitionConnection.getAutoCommit());
+                partitionConnection.setAutoCommit(false);
+
+                writes.add(() -> {
+                    this.writeRows(partitionConnection, codec, partitionRows, batchSize, versions);
+
+                    return null;
+                });
+            }
+
+            // Named after this instance, so if it dies before committing, another can tell the transactions are orphaned
+            String transactionPrefix = this.connectionPoolService.getPreparedTransactionPrefix() + UUID.randomUUID();
+            List<String> prepared = new ArrayList<>();
+
+            try {
+                this.executionService.invokeAll(writes);
+
+                for (int i = 0; i < connections.size(); i++) {
+                    String transactionId = transactionPrefix + "-" + i + "-of-" + connections.size();
+
+                    try (Statement statement = connections.get(i).createStatement()) {
+                        statement.execute("PREPARE TRANSACTION '" + transactionId + "'");
+                    }
+
+                    prepared.add(transactionId);
+                }
+            } catch (Exception e) {
+                // The partitions that were prepared are no longer part of their connection's transaction, so they're
+                // rolled back separately once the others have been
+                for (int i = prepared.size(); i < connections.size(); i++) {
+                    try {
+                        connections.get(i).rollback();
+                    } catch (SQLException rollbackException) {
+                        // We're already failing the save, and the reason it failed is more useful
                     }
                 }
 
-                // Before we insert into the database, we need to make sure the incoming request isn't a partial save. This
-                // means that properties will only be included if they changed in the workflow. So we need to merge the existing
-                // data with the data coming in rather than assuming the incoming data is complete.
-                if (existingObject != null &&
-                        existingObject.getProperties() != null &&
-                        existingObject.getProperties().size() > 0) {
-                    for (Property property : existingObject.getProperties()) {
-                        // We add this additional check in case there's any form of data corruption, but we don't want to halt
-                        // the save as that can get us in a catch 22 situation
-                        if (property.getDeveloperName() != null &&
-                                property.getDeveloperName().isEmpty() == false) {
-                            // Check to see if the key exists
-                            if (jsonObject.has(property.getDeveloperName()) == false) {
-                                // The property doesn't exist, so we add it
-                                jsonObject.put(property.getDeveloperName(), property.getContentValue());
-                            }
-                        }
+                this.finishPreparedTransactions(connections, prepared, "ROLLBACK PREPARED");
+
+                throw e;
+            }
+
+            List<String> unfinished = this.finishPreparedTransactions(connections, prepared, "COMMIT PREPARED");
+
+            if (unfinished.isEmpty() == false) {
+                throw new Exception("The objects were written, but the prepared transactions " + String.join(", ", unfinished) + " could not be committed. They hold part of the save, and their rows can't be seen or changed until they're committed, either with COMMIT PREPARED or when a pool for the database is next created.");
+            }
+
+            return versions;
+        } finally {
+            for (int i = 0; i < connections.size(); i++) {
+                try {
+                    if (i < autoCommits.size()) {
+                        connections.get(i).setAutoCommit(autoCommits.get(i));
+                    }
+                } finally {
+                    // The connection we were given is closed by whoever gave it to us
+                    if (i > 0) {
+                        connections.get(i).close();
                     }
                 }
+            }
+        }
+    }
+
+    /**
+     * Commits or rolls back each of the prepared transactions, returning the ones that couldn't be. Any session can
+     * finish a prepared transaction, so if one of the connections has failed, the others are tried. Commits stop at the
+     * first transaction that can't be committed, so the ones left over always include the last partition. That's how
+     * the ConnectionPoolService knows to commit, rather than roll back, the transactions of a save it finds orphaned.
+     */
+    private List<String> finishPreparedTransactions(List<Connection> connections, List<String> transactionIds, String command) {
+        List<String> unfinished = new ArrayList<>();
+
+        for (String transactionId : transactionIds) {
+            boolean finished = false;
+
+            if (command.startsWith("COMMIT") == true &&
+                    unfinished.isEmpty() == false) {
+                unfinished.add(transactionId);
 
-                PreparedStatement preparedStatement = null;
+                continue;
+            }
 
+            for (Connection connection : connections) {
                 try {
-                    if (existingObject != null) {
-                        // Generate the update as we have the object already
-                        preparedStatement = connection.prepareStatement(
-                                "UPDATE typetables SET parentid = ?, name = ?, data = ? WHERE id = ? AND tenantid = ?"
-                        );
-                    } else {
-                        // Generate the insert as the object either doesn't exist when it should or never existed in the backend
-                        preparedStatement = connection.prepareStatement(
-                                "INSERT INTO typetables (parentid, name, data, id, tenantid) VALUES (?, ?, ?, ?, ?)"
-                        );
+                    // Prepared transactions can't be finished from inside a transaction
+                    connection.setAutoCommit(true);
+
+                    try (Statement statement = connection.createStatement()) {
+                        statement.execute(command + " '" + transactionId + "'");
                     }
 
-                    // Add the data
-                    preparedStatement.setString(1, parentId);
-                    preparedStatement.setString(2, object.getDeveloperName());
-                    preparedStatement.setString(3, jsonObject.toString());
-                    preparedStatement.setString(4, object.getExternalId());
-                    preparedStatement.setString(5, authenticatedWho.getManyWhoTenantId());
+                    finished = true;
 
-                    // Execute the sql statement
-                    preparedStatement.executeUpdate();
+                    break;
                 } catch (SQLException e) {
-                    throw e;
-                } finally {
-                    try {
-                        if (preparedStatement != null) {
-                            preparedStatement.close();
-                        }
-                    } catch (SQLException e) {
-                        throw e;
+                    // Try again on the next connection
+                }
+            }
+
+            if (finished == false) {
+                unfinished.add(transactionId);
+            }
+        }
+
+        return unfinished;
+    }
+
+    private void writeRows(Connection connection, StorageCodec codec, List<ObjectRow> objectRows, int batchSize, Map<String, Long> versions) throws Exception {
+        String merge = codec.getMerge();
+
+        // The incoming request may be a partial save (properties are only included if they changed in the workflow).
+        // If the database can't merge the incoming properties over the existing ones, we do it here instead
+        if (merge == null) {
+            objectRows = this.mergeExistingRows(connection, codec, objectRows, batchSize);
+            merge = "EXCLUDED." + codec.getColumn();
+        }
+
+        // Rows saved with the version they were loaded at are only written if they're still at that version, and every
+        // other row is written whatever has happened to it since
+        List<ObjectRow> upsertRows = new ArrayList<>(objectRows.size());
+        List<ObjectRow> versionedRows = new ArrayList<>();
+
+        for (ObjectRow objectRow : objectRows) {
+            if (objectRow.getVersion() == null) {
+                upsertRows.add(objectRow);
+            } else {
+                versionedRows.add(objectRow);
+            }
+        }
+
+        if (upsertRows.size() > 0) {
+            this.upsertRows(connection, codec, merge, upsertRows, batchSize, versions);
+        }
+
+        if (versionedRows.size() > 0) {
+            this.updateVersionedRows(connection, codec, versionedRows, batchSize);
+        }
+    }
+
+    /**
+     * Inserts each row, or updates it if it already exists, recording the version every row written is now at. The
+     * versions are asked for as generated keys, which has the driver add RETURNING id, version to the statement, as a
+     * RETURNING written into the statement itself can't be sent in a batch.
+     */
+    private void upsertRows(Connection connection, StorageCodec codec, String merge, List<ObjectRow> objectRows, int batchSize, Map<String, Long> versions) throws Exception {
+        List<String> conflicts = new ArrayList<>();
+
+        // Rows that already exist are updated, as long as they belong to the same tenant
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "INSERT INTO typetables (parentid, parentproperty, name, " + codec.getColumn() + ", id, tenantid) VALUES (?, ?, ?, " + codec.getParameter() + ", ?, ?) " +
+                "ON CONFLICT (id) DO UPDATE SET parentid = EXCLUDED.parentid, parentproperty = EXCLUDED.parentproperty, name = EXCLUDED.name, " +
+                codec.getColumn() + " = " + merge + ", version = typetables.version + 1, updatedat = now() " +
+                "WHERE typetables.tenantid = EXCLUDED.tenantid",
+                new String[] { "id", "version" }
+        )) {
+            List<ObjectRow> pendingRows = new ArrayList<>(batchSize);
+
+            for (ObjectRow objectRow : objectRows) {
+                // Add the data
+                preparedStatement.setString(1, objectRow.getParentId());
+                preparedStatement.setString(2, objectRow.getParentProperty());
+                preparedStatement.setString(3, objectRow.getName());
+                codec.setValue(preparedStatement, 4, objectRow.getData());
+                preparedStatement.setString(5, objectRow.getId());
+                preparedStatement.setString(6, objectRow.getTenantId());
+                preparedStatement.addBatch();
+
+                pendingRows.add(objectRow);
+
+                // Send the batch once it's full, so we don't hold an unbounded batch in memory
+                if (pendingRows.size() == batchSize) {
+                    this.collectConflicts(preparedStatement.executeBatch(), pendingRows, conflicts);
+                    this.collectVersions(preparedStatement, versions);
+                    pendingRows.clear();
+                }
+            }
+
+            if (pendingRows.size() > 0) {
+                this.collectConflicts(preparedStatement.executeBatch(), pendingRows, conflicts);
+                this.collectVersions(preparedStatement, versions);
+            }
+        } catch (BatchUpdateException e) {
+            // The driver puts the actual reason the batch failed in the next exception
+            if (e.getNextException() != null) {
+                throw e.getNextException();
+            }
+
+            throw e;
+        }
+
+        // A row is only skipped by the upsert if its id is already used by a row of another tenant
+        if (conflicts.size() > 0) {
+            throw new Exception("The objects could not be saved, as their identifiers are already used by another tenant. The objects causing the fault are: " + String.join(", ", conflicts));
+        }
+    }
+
+    /**
+     * Updates each row only if it's still at the version it was loaded at, which moves it on to the next version. The
+     * check is part of the update, so there's no window between checking the version and writing the row. If any row
+     * has been changed (or deleted) since it was loaded, the save fails with the ids of every row that conflicted.
+     */
+    private void updateVersionedRows(Connection connection, StorageCodec codec, List<ObjectRow> objectRows, int batchSize) throws Exception {
+        List<String> conflicts = new ArrayList<>();
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "UPDATE typetables SET parentid = ?, parentproperty = ?, name = ?, " + codec.getUpdate() + ", version = version + 1, updatedat = now() " +
+                "WHERE id = ? AND tenantid = ? AND version = ?"
+        )) {
+            List<ObjectRow> pendingRows = new ArrayList<>(batchSize);
+
+            for (ObjectRow objectRow : objectRows) {
+                preparedStatement.setString(1, objectRow.getParentId());
+                preparedStatement.setString(2, objectRow.getParentProperty());
+                preparedStatement.setString(3, objectRow.getName());
+                codec.setValue(preparedStatement, 4, objectRow.getData());
+                preparedStatement.setString(5, objectRow.getId());
+                preparedStatement.setString(6, objectRow.getTenantId());
+                preparedStatement.setLong(7, objectRow.getVersion());
+                preparedStatement.addBatch();
+
+                pendingRows.add(objectRow);
+
+                if (pendingRows.size() == batchSize) {
+                    this.collectConflicts(preparedStatement.executeBatch(), pendingRows, conflicts);
+                    pendingRows.clear();
+                }
+            }
+
+            if (pendingRows.size() > 0) {
+                this.collectConflicts(preparedStatement.executeBatch(), pendingRows, conflicts);
+            }
+        } catch (BatchUpdateException e) {
+            // The driver puts the actual reason the batch failed in the next exception
+            if (e.getNextException() != null) {
+                throw e.getNextException();
+            }
+
+            throw e;
+        }
+
+        if (conflicts.size() > 0) {
+            throw new Exception("The objects could not be saved, as they have been changed or deleted since they were loaded. Please load them again and reapply the changes. The objects that conflicted are: " + String.join(", ", conflicts));
+        }
+    }
+
+    private void collectVersions(PreparedStatement preparedStatement, Map<String, Long> versions) throws SQLException {
+        // Rows skipped because their id belongs to another tenant aren't returned, so the versions are matched up by id
+        try (ResultSet resultSet = preparedStatement.getGeneratedKeys()) {
+            while (resultSet.next()) {
+                versions.put(resultSet.getString(1), resultSet.getLong(2));
+            }
+        }
+    }
+
+    private void collectConflicts(int[] counts, List<ObjectRow> objectRows, List<String> conflicts) {
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) {
+                conflicts.add(objectRows.get(i).getId());
+            }
+        }
+    }
+
+    /**
+     * Merges the properties of each row over the properties already stored for it (locking the existing rows until the
+     * transaction ends), the same way the jsonb || operator would.
+     */
+    private List<ObjectRow> mergeExistingRows(Connection connection, StorageCodec codec, List<ObjectRow> objectRows, int batchSize) throws Exception {
+        Map<String, String> merged = new HashMap<>();
+        List<ObjectRow> mergedRows = new ArrayList<>(objectRows.size());
+
+        for (int i = 0; i < objectRows.size(); i += batchSize) {
+            List<ObjectRow> batchRows = objectRows.subList(i, Math.min(i + batchSize, objectRows.size()));
+            String[] ids = new String[batchRows.size()];
+
+            for (int j = 0; j < batchRows.size(); j++) {
+                ids[j] = batchRows.get(j).getId();
+            }
+
+            Map<String, String> existing = new HashMap<>();
+
+            try (PreparedStatement preparedStatement = connection.prepareStatement(
+                    "SELECT id, " + codec.getColumn() + " FROM typetables WHERE tenantid = ? AND id = ANY(?) FOR UPDATE"
+            )) {
+                preparedStatement.setString(1, batchRows.get(0).getTenantId());
+                preparedStatement.setArray(2, connection.createArrayOf("varchar", ids));
+
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        existing.put(resultSet.getString(1), codec.readJson(resultSet, 2));
+                    }
+                }
+            }
+
+            for (ObjectRow objectRow : batchRows) {
+                // The same object can appear more than once, in which case it's merged over what we've merged so far
+                String data = merged.containsKey(objectRow.getId()) == true ? merged.get(objectRow.getId()) : existing.get(objectRow.getId());
+
+                if (data != null) {
+                    JSONObject jsonObject = new JSONObject(data);
+                    JSONObject incoming = new JSONObject(objectRow.getData());
+                    Iterator keys = incoming.keys();
+
+                    while (keys.hasNext()) {
+                        String key = (String) keys.next();
+
+                        jsonObject.put(key, incoming.get(key));
                     }
+
+                    data = jsonObject.toString();
+                } else {
+                    data = objectRow.getData();
                 }
 
-                // Now the object has been saved, we return the fully hydrated object
-                objectCollection.add(
-                        this.mapperService.convertJSONObjectToObject(
-                                object.getDeveloperName(),
-                                object.getExternalId(),
-                                jsonObject
-                        )
-                );
+                merged.put(objectRow.getId(), data);
+                mergedRows.add(new ObjectRow(objectRow.getId(), objectRow.getParentId(), objectRow.getParentProperty(), objectRow.getName(), objectRow.getTenantId(), data, objectRow.getVersion()));
             }
         }
 
+        return mergedRows;
+    }
+
+    private boolean hasUniqueIds(List<ObjectRow> objectRows) {
+        // The same object saved twice has to be merged in order, so it can't be split across connections
+        Set<String> ids = new HashSet<>();
+
+        for (ObjectRow objectRow : objectRows) {
+            if (ids.add(objectRow.getId()) == false) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Deletes the given objects in a single statement, and (if cascading) every row below them in the hierarchy too.
+     * The identifiers of all the rows that were deleted are returned, so the caller knows how many went.
+     */
+    public List<String> executeObjectDelete(AuthenticatedWho authenticatedWho, Connection connection, ObjectCollection objects, boolean cascade) throws Exception {
+        if (authenticatedWho == null) {
+            throw new Exception(("The AuthenticatedWho object cannot be null."));
+        }
+
+        if (connection == null) {
+            throw new Exception("The Connection object cannot be null.");
+        }
+
+        if (authenticatedWho.getManyWhoTenantId() == null ||
+                authenticatedWho.getManyWhoTenantId().isEmpty() == true) {
+            throw new Exception("The AuthenticatedWho.ManyWhoTenantId cannot be null or blank.");
+        }
+
+        List<String> deletedIds = new ArrayList<>();
+
+        if (objects == null ||
+                objects.size() == 0) {
+            return deletedIds;
+        }
+
+        String[] ids = new String[objects.size()];
+
+        for (int i = 0; i < objects.size(); i++) {
+            if (objects.get(i).getExternalId() == null ||
+                    objects.get(i).getExternalId().isEmpty() == true) {
+                throw new Exception("The ExternalId of every object to be deleted must be provided.");
+            }
+
+            this.bindingService.validateUUID(objects.get(i).getExternalId());
+
+            ids[i] = objects.get(i).getExternalId();
+        }
+
+        String sql;
+
+        if (cascade == true) {
+            // Walk down from the objects through every level of children, the same way they're loaded, and delete the
+            // lot in the same statement
+            sql = "WITH RECURSIVE deleted AS (" +
+                    "SELECT id, 1 AS depth FROM typetables WHERE tenantid = ? AND id = ANY(?) " +
+                    "UNION ALL " +
+                    "SELECT t.id, d.depth + 1 FROM typetables t " +
+                    "JOIN deleted d ON t.parentid = d.id WHERE t.tenantid = ? AND d.depth < ?" +
+                    ") DELETE FROM typetables WHERE tenantid = ? AND id IN (SELECT id FROM deleted) RETURNING id";
+        } else {
+            sql = "DELETE FROM typetables WHERE tenantid = ? AND id = ANY(?) RETURNING id";
+        }
+
+        boolean autoCommit = connection.getAutoCommit();
+
+        try {
+            connection.setAutoCommit(false);
+
+            try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+                preparedStatement.setString(1, authenticatedWho.getManyWhoTenantId());
+                preparedStatement.setArray(2, connection.createArrayOf("varchar", ids));
+
+                if (cascade == true) {
+                    preparedStatement.setString(3, authenticatedWho.getManyWhoTenantId());
+                    preparedStatement.setInt(4, Settings.getInteger(Settings.LOAD_MAXIMUM_DEPTH, 16));
+                    preparedStatement.setString(5, authenticatedWho.getManyWhoTenantId());
+                }
+
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        deletedIds.add(resultSet.getString(1));
+                    }
+                }
+            }
+
+            connection.commit();
+        } catch (Exception e) {
+            connection.rollback();
+
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+
+        return deletedIds;
+    }
+
+    /**
+     * Flattens the objects, and every level of their children, into the rows they're saved as, giving back the objects
+     * as they were saved. This is package private so it can be tested without a database.
+     */
+    ObjectCollection flattenObjects(AuthenticatedWho authenticatedWho, String parentId, String parentProperty, ObjectCollection objects, List<ObjectRow> objectRows) throws Exception {
+        ObjectCollection objectCollection = new ObjectCollection();
+
+        // Go through the object data and convert to a json object
+        for (Object object : objects) {
+            JSONObject jsonObject = new JSONObject();
+            boolean existing = false;
+            Long version = null;
+
+            // Validate the object name is valid
+            this.bindingService.validateName(object.getDeveloperName());
+
+            // Check to see if this is an existing object. We don't need to load it, as the partial save is merged into
+            // the existing data by the database when the row is written
+            if (object.getExternalId() != null &&
+                    object.getExternalId().isEmpty() == false) {
+                this.bindingService.validateUUID(object.getExternalId());
+
+                existing = true;
+            } else {
+                // Assign an id for this object as it's new
+                object.setExternalId(UUID.randomUUID().toString());
+            }
+
+            // Go through all of the properties and assign them into json object or flatten complex properties into
+            // child records
+            for (Property property : object.getProperties()) {
+                // Validate the property name is valid
+                this.bindingService.validateName(property.getDeveloperName());
+
+                // The version isn't stored with the other properties, it's used to check the row hasn't changed since
+                // it was loaded, which only means something for objects that already exist
+                if (MapperService.VERSION_PROPERTY.equals(property.getDeveloperName()) == true) {
+                    if (existing == true) {
+                        version = this.parseVersion(object, property.getContentValue());
+                    }
+
+                    continue;
+                }
+
+                if (property.getObjectData() != null &&
+                        property.getObjectData().size() > 0) {
+                    // Repeat up the stack of objects as child objects are stored as separate records and are
+                    // therefore excluded from the json at this level
+                    this.flattenObjects(authenticatedWho, object.getExternalId(), property.getDeveloperName(), property.getObjectData(), objectRows);
+                } else {
+                    // Add the value to the json
+                    jsonObject.put(property.getDeveloperName(), property.getContentValue());
+                }
+            }
+
+            objectRows.add(
+                    new ObjectRow(
+                            object.getExternalId(),
+                            parentId,
+                            parentProperty,
+                            object.getDeveloperName(),
+                            authenticatedWho.getManyWhoTenantId(),
+                            jsonObject.toString(),
+                            version
+                    )
+            );
+
+            // Return the object as it was saved. As this may have been a partial save, any properties that weren't
+            // provided are left as they were in the database, and aren't included here
+            Object savedObject = this.mapperService.convertJSONObjectToObject(
+                    object.getDeveloperName(),
+                    object.getExternalId(),
+                    jsonObject
+            );
+
+            // A versioned save moves the row on by one, and new rows start at the first version, so the object can be
+            // saved again with the version its row now has
+            if (version != null) {
+                savedObject.getProperties().add(new Property(MapperService.VERSION_PROPERTY, String.valueOf(version + 1)));
+            } else if (existing == false) {
+                savedObject.getProperties().add(new Property(MapperService.VERSION_PROPERTY, "1"));
+            }
+
+            objectCollection.add(savedObject);
+        }
+
         return objectCollection;
     }
 
-    public ObjectCollection executeObjectLoad(AuthenticatedWho authenticatedWho, Connection connection, ObjectDataRequest objectDataRequest) throws Exception {
+    /**
+     * Gives each saved object that doesn't already know its version the one its row was written at.
+     */
+    private void addVersions(ObjectCollection objectCollection, Map<String, Long> versions) {
+        for (Object object : objectCollection) {
+            Long version = versions.get(object.getExternalId());
+
+            if (version == null) {
+                continue;
+            }
+
+            boolean hasVersion = false;
+
+            for (Property property : object.getProperties()) {
+                if (MapperService.VERSION_PROPERTY.equals(property.getDeveloperName()) == true) {
+                    hasVersion = true;
+
+                    break;
+                }
+            }
+
+            if (hasVersion == false) {
+                object.getProperties().add(new Property(MapperService.VERSION_PROPERTY, String.valueOf(version)));
+            }
+        }
+    }
+
+    private Long parseVersion(Object object, String value) throws Exception {
+        if (value == null ||
+                value.isEmpty() == true) {
+            return null;
+        }
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new Exception("The " + MapperService.VERSION_PROPERTY + " property of the object " + object.getExternalId() + " must be a whole number. The value provided is: " + value);
+        }
+    }
+
+    public ObjectCollection executeObjectLoad(AuthenticatedWho authenticatedWho, Configuration configuration, Connection connection, ObjectDataRequest objectDataRequest) throws Exception {
         if (authenticatedWho == null) {
             throw new Exception(("The AuthenticatedWho object cannot be null."));
         }
@@ -222,29 +899,324 @@ public class DatabaseService {
             throw new Exception("The ObjectDataRequest.ObjectDataType.DeveloperName must be provided. This property is used to determine the type of data to be loaded.");
         }
 
-        ObjectCollection objectCollection = null;
-        Statement statement = null;
+        StorageCodec codec = this.getStorageCodec(authenticatedWho, configuration, connection);
+        ListFilter listFilter = objectDataRequest.getListFilter();
+        Keyset keyset = null;
+        String keysetKey = null;
+
+        // If an earlier page of the same query ended where this one starts, we can seek straight there rather than
+        // having the database count its way through the offset. This is off by default, like the load cache, as the
+        // positions are only forgotten on writes made through this instance. A write made through another instance, or
+        // straight to the database, would make the seek skip or repeat rows, which an offset never does. Loads by
+        // continuation token don't have this problem, as the position is given by the caller
+        if (this.isKeysetPageable(listFilter) == true &&
+                Settings.getBoolean(Settings.LOAD_KEYSET_PAGING, false) == true) {
+            keysetKey = this.getKeysetKey(authenticatedWho, configuration, codec, objectDataRequest);
+
+            if (listFilter.getOffset() > 0) {
+                keyset = this.queryService.getKeyset(keysetKey + listFilter.getOffset());
+            }
+        }
+
+        ObjectCollection objectCollection = new ObjectCollection();
+
+        // Collect each of the objects as they're read from the database
+        Keyset last = this.executeObjectStream(authenticatedWho, connection, objectDataRequest, codec, keyset, objectCollection::add);
+
+        this.recordPropertyUses(configuration, objectDataRequest);
+
+        // Remember where this page ended, for when the next page is asked for
+        if (keysetKey != null &&
+                last != null &&
+                objectCollection.size() == listFilter.getLimit()) {
+            this.queryService.cacheKeyset(keysetKey + (listFilter.getOffset() + listFilter.getLimit()), last);
+        }
+
+        this.attachDescendants(authenticatedWho, connection, objectDataRequest, codec, objectCollection);
+
+        return objectCollection;
+    }
+
+    /**
+     * Loads a page of objects starting straight after the position in the continuation token (or from the start if
+     * there isn't one), ignoring the offset in the list filter. The page comes back with the token for the next page.
+     */
+    public ObjectPage executeObjectPageLoad(AuthenticatedWho authenticatedWho, Configuration configuration, Connection connection, ObjectDataRequest objectDataRequest, String continuationToken) throws Exception {
+        if (authenticatedWho == null) {
+            throw new Exception(("The AuthenticatedWho object cannot be null."));
+        }
+
+        if (connection == null) {
+            throw new Exception("The Connection object cannot be null.");
+        }
+
+        if (objectDataRequest == null) {
+            throw new Exception("The ObjectDataRequest object cannot be null.");
+        }
+
+        if (this.isKeysetPageable(objectDataRequest.getListFilter()) == false) {
+            throw new Exception("The ObjectDataRequest.ListFilter must be provided with a Limit, and without an Id, to load by page. A Search must also be given an OrderByPropertyDeveloperName, as results ranked by how well they match can't be paged this way.");
+        }
+
+        StorageCodec codec = this.getStorageCodec(authenticatedWho, configuration, connection);
+        Keyset keyset = null;
+
+        if (continuationToken != null &&
+                continuationToken.isEmpty() == false) {
+            keyset = this.queryService.decodeKeyset(continuationToken, objectDataRequest.getListFilter());
+        }
+
+        ObjectCollection objectCollection = new ObjectCollection();
+
+        Keyset last = this.executeObjectStream(authenticatedWho, connection, objectDataRequest, codec, keyset, objectCollection::add);
+
+        this.recordPropertyUses(configuration, objectDataRequest);
+
+        this.attachDescendants(authenticatedWho, connection, objectDataRequest, codec, objectCollection);
+
+        // A short page means there's nothing after it
+        if (last == null ||
+                objectCollection.size() < objectDataRequest.getListFilter().getLimit()) {
+            return new ObjectPage(objectCollection, null);
+        }
+
+        return new ObjectPage(objectCollection, this.queryService.encodeKeyset(last));
+    }
+
+    private void attachDescendants(AuthenticatedWho authenticatedWho, Connection connection, ObjectDataRequest objectDataRequest, StorageCodec codec, ObjectCollection objectCollection) throws Exception {
+        // Bring back the child objects that were saved as separate rows, for the whole page at once
+        if (objectCollection.size() > 0 &&
+                Settings.getBoolean(Settings.LOAD_HIERARCHICAL, true) == true) {
+            long start = this.metricsService.start();
+
+            this.mapperService.attachDescendants(objectCollection, this.executeDescendantLoad(authenticatedWho, connection, codec, objectCollection));
+
+            this.metricsService.recordTime(MetricsService.LOAD_DESCENDANTS, authenticatedWho.getManyWhoTenantId(), objectDataRequest.getObjectDataType().getDeveloperName(), start);
+        }
+    }
+
+    private void recordPropertyUses(Configuration configuration, ObjectDataRequest objectDataRequest) {
+        ListFilter listFilter = objectDataRequest.getListFilter();
+
+        // Keep track of the properties being filtered on, so the hot ones can be indexed. This is only done once the
+        // filter has been compiled, which validated every column name, and never for loads by id, which ignore the WHERE
+        if (listFilter == null ||
+                listFilter.getWhere() == null ||
+                (listFilter.getId() != null && listFilter.getId().isEmpty() == false)) {
+            return;
+        }
+
+        for (ListFilterWhere listFilterWhere : listFilter.getWhere()) {
+            this.schemaService.recordPropertyUse(configuration, objectDataRequest.getObjectDataType().getDeveloperName(), listFilterWhere.getColumnName());
+        }
+    }
+
+    private boolean isKeysetPageable(ListFilter listFilter) {
+        // Ranked search results have no position to carry on from, so they can only be paged with the offset
+        return listFilter != null &&
+                listFilter.getLimit() > 0 &&
+                (listFilter.getId() == null || listFilter.getId().isEmpty() == true) &&
+                (this.queryService.isSearch(listFilter) == false || this.queryService.getOrderBy(listFilter) != null);
+    }
+
+    /**
+     * Identifies the query without its paging, so positions are only ever reused by a query with the same filters
+     * against the same database and storage. The load cache's generation is part of the key, so every position is
+     * forgotten as soon as the tenant saves, deletes or imports anything through this instance.
+     */
+    private String getKeysetKey(AuthenticatedWho authenticatedWho, Configuration configuration, StorageCodec codec, ObjectDataRequest objectDataRequest) throws Exception {
+        ListFilter listFilter = objectDataRequest.getListFilter();
+        StringBuilder key = new StringBuilder();
+
+        key.append(this.loadCacheService.getTenantKey(configuration, authenticatedWho)).append('|');
+        key.append(this.loadCacheService.getGeneration(configuration, authenticatedWho)).append('|');
+        key.append(codec.getColumn()).append('|');
+        key.append(objectDataRequest.getObjectDataType().getDeveloperName()).append('|');
+        key.append(this.queryService.getShape("typetables", listFilter, this.queryService.getJsonColumns())).append('|');
+
+        List<String> values = new ArrayList<>();
+
+        if (listFilter.getWhere() != null) {
+            for (ListFilterWhere listFilterWhere : listFilter.getWhere()) {
+                values.add(listFilterWhere.getContentValue());
+            }
+        }
+
+        if (this.queryService.isSearch(listFilter) == true) {
+            values.add(listFilter.getSearch());
+        }
+
+        for (String value : values) {
+            // Each value is prefixed with its length, so no value can be crafted to look like several
+            if (value == null) {
+                key.append("-1|");
+            } else {
+                key.append(value.length()).append(':').append(value).append('|');
+            }
+        }
+
+        return key.toString();
+    }
+
+    public List<ObjectRow> executeDescendantLoad(AuthenticatedWho authenticatedWho, Connection connection, StorageCodec codec, ObjectCollection objects) throws Exception {
+        if (authenticatedWho == null) {
+            throw new Exception(("The AuthenticatedWho object cannot be null."));
+        }
+
+        if (connection == null) {
+            throw new Exception("The Connection object cannot be null.");
+        }
+
+        List<ObjectRow> objectRows = new ArrayList<>();
+
+        if (objects == null ||
+                objects.size() == 0) {
+            return objectRows;
+        }
+
+        String[] parentIds = new String[objects.size()];
+
+        for (int i = 0; i < objects.size(); i++) {
+            parentIds[i] = objects.get(i).getExternalId();
+        }
+
+        // Walk down from the parents through every level of children in one query. The depth limit guards against any
+        // rows that (through corruption) point back up at one of their own parents
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "WITH RECURSIVE descendants AS (" +
+                "SELECT id, parentid, parentproperty, name, " + codec.getColumn() + ", version, 1 AS depth FROM typetables WHERE tenantid = ? AND parentid = ANY(?) " +
+                "UNION ALL " +
+                "SELECT t.id, t.parentid, t.parentproperty, t.name, t." + codec.getColumn() + ", t.version, d.depth + 1 FROM typetables t " +
+                "JOIN descendants d ON t.parentid = d.id WHERE t.tenantid = ? AND d.depth < ?" +
+                ") SELECT id, parentid, parentproperty, name, " + codec.getColumn() + ", version FROM descendants"
+        )) {
+            preparedStatement.setString(1, authenticatedWho.getManyWhoTenantId());
+            preparedStatement.setArray(2, connection.createArrayOf("varchar", parentIds));
+            preparedStatement.setString(3, authenticatedWho.getManyWhoTenantId());
+            preparedStatement.setInt(4, Settings.getInteger(Settings.LOAD_MAXIMUM_DEPTH, 16));
+
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    objectRows.add(
+                            new ObjectRow(
+                                    resultSet.getString(1),
+                                    resultSet.getString(2),
+                                    resultSet.getString(3),
+                                    resultSet.getString(4),
+                                    authenticatedWho.getManyWhoTenantId(),
+                                    codec.readJson(resultSet, 5),
+                                    resultSet.getLong(6)
+                            )
+                    );
+                }
+            }
+        }
+
+        return objectRows;
+    }
+
+    /**
+     * Streams the objects, starting straight after the given position if there is one, and returns the position of
+     * the last row (or null if there weren't any rows).
+     */
+    public Keyset executeObjectStream(AuthenticatedWho authenticatedWho, Connection connection, ObjectDataRequest objectDataRequest, StorageCodec codec, Keyset keyset, ObjectHandler objectHandler) throws Exception {
+        if (authenticatedWho == null) {
+            throw new Exception(("The AuthenticatedWho object cannot be null."));
+        }
+
+        if (connection == null) {
+            throw new Exception("The Connection object cannot be null.");
+        }
+
+        if (objectHandler == null) {
+            throw new Exception("The ObjectHandler object cannot be null.");
+        }
+
+        long start = this.metricsService.start();
+
+        Query query = this.getSelectStatementForObjectDataRequest(authenticatedWho, objectDataRequest, codec, keyset);
+
+        String tenantId = authenticatedWho.getManyWhoTenantId();
+        String typeName = objectDataRequest.getObjectDataType().getDeveloperName();
+
+        this.metricsService.recordTime(MetricsService.LOAD_BUILD, tenantId, typeName, start);
+
+        boolean autoCommit = connection.getAutoCommit();
+        PreparedStatement preparedStatement = null;
         ResultSet resultSet = null;
 
         try {
-            statement = connection.createStatement();
-            resultSet = statement.executeQuery(this.getSelectStatementForObjectDataRequest(authenticatedWho, objectDataRequest));
+            // The driver only uses a cursor (rather than reading every row into memory up front) when it's inside a
+            // transaction and has been given a fetch size
+            connection.setAutoCommit(false);
+
+            preparedStatement = connection.prepareStatement(query.getSql(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            preparedStatement.setFetchSize(Settings.getInteger(Settings.LOAD_FETCH_SIZE, 500));
+
+            for (int i = 0; i < query.getParameters().size(); i++) {
+                preparedStatement.setObject(i + 1, query.getParameters().get(i));
+            }
+
+            start = this.metricsService.start();
+
+            resultSet = preparedStatement.executeQuery();
+
+            this.metricsService.recordTime(MetricsService.LOAD_QUERY, tenantId, typeName, start);
+
+            long rows = 0;
+            long payloadSize = 0;
+            long mappingNanos = 0;
+            String lastId = null;
+            String lastValue = null;
 
             // Go through each record in the result set and convert as per the object data type information
-            if (resultSet.next()) {
-                // Convert the json object back to a ManyWho object
-                Object object = this.mapperService.convertJSONObjectToObject(
-                        objectDataRequest.getObjectDataType().getDeveloperName(),
-                        resultSet.getString(0),
-                        new JSONObject(resultSet.getString(1))
-                );
-
-                if (object != null) {
-                    // Add the object to the collection result
-                    objectCollection.add(object);
+            while (resultSet.next()) {
+                lastId = resultSet.getString(1);
+                lastValue = resultSet.getString(3);
+
+                start = this.metricsService.start();
+
+                Object object;
+
+                // Convert the stored properties back to a ManyWho object, straight from however they're encoded
+                try (JsonParser parser = codec.createParser(resultSet, 2)) {
+                    object = this.mapperService.convertRowToObject(typeName, lastId, parser);
+                    object.getProperties().add(new Property(MapperService.VERSION_PROPERTY, resultSet.getString(4)));
+
+                    if (parser != null) {
+                        JsonLocation location = parser.getCurrentLocation();
+
+                        payloadSize += Math.max(location.getCharOffset(), location.getByteOffset());
+                    }
+                }
+
+                if (start != 0) {
+                    mappingNanos += System.nanoTime() - start;
                 }
+
+                rows++;
+
+                // Hand the object over, so it doesn't need to be held here
+                objectHandler.handle(object);
             }
+
+            // Mapping is interleaved with reading the rows, so it's recorded as the total for the whole load
+            this.metricsService.recordNanos(MetricsService.LOAD_MAP, tenantId, typeName, mappingNanos);
+            this.metricsService.recordRows(MetricsService.LOAD_MAP, tenantId, typeName, rows);
+            this.metricsService.recordPayloadSize(MetricsService.LOAD_MAP, tenantId, typeName, payloadSize);
+
+            connection.commit();
+
+            if (lastId == null) {
+                return null;
+            }
+
+            ListFilter listFilter = objectDataRequest.getListFilter();
+
+            return new Keyset(this.queryService.getOrderBy(listFilter), this.queryService.getOrderByDirection(listFilter), lastValue, lastId);
         } catch (Exception e) {
+            connection.rollback();
+
             throw e;
         } finally {
             try {
@@ -252,27 +1224,20 @@ public class DatabaseService {
                     resultSet.close();
                 }
 
-                if (statement != null) {
-                    statement.close();
+                if (preparedStatement != null) {
+                    preparedStatement.close();
                 }
-            } catch (SQLException e) {
-                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
             }
         }
-
-        return objectCollection;
     }
 
-    public void validateUUID(String uuid) throws Exception {
-        try {
-            // Check to make sure the external identifier is a valid UUID
-            UUID.fromString(uuid);
-        } catch (IllegalArgumentException e) {
-            throw new Exception("The provided identifier is not valid. The value causing this error is: " + uuid);
-        }
+    public Query getSelectStatementForObjectDataRequest(AuthenticatedWho authenticatedWho, ObjectDataRequest objectDataRequest) throws Exception {
+        return this.getSelectStatementForObjectDataRequest(authenticatedWho, objectDataRequest, JSONB_CODEC, null);
     }
 
-    private String getSelectStatementForObjectDataRequest(AuthenticatedWho authenticatedWho, ObjectDataRequest objectDataRequest) throws Exception {
+    public Query getSelectStatementForObjectDataRequest(AuthenticatedWho authenticatedWho, ObjectDataRequest objectDataRequest, StorageCodec codec, Keyset keyset) throws Exception {
         if (authenticatedWho == null) {
             throw new Exception(("The AuthenticatedWho object cannot be null."));
         }
@@ -298,79 +1263,50 @@ public class DatabaseService {
         // Make sure the object name is ok for the select
         this.bindingService.validateName(objectDataRequest.getObjectDataType().getDeveloperName());
 
-        // Create the select for the json
-        String sql = "SELECT id, data FROM typetables ";
-        sql += "WHERE name = '" + objectDataRequest.getObjectDataType().getDeveloperName() + "' ";
-        sql += "AND tenantid = '" + authenticatedWho.getManyWhoTenantId() + "' ";
+        // Create the select for the json, reusing the SQL of any earlier query with the same shape
+        String shape = this.queryService.getShape("typetables:" + codec.getColumn(), objectDataRequest.getListFilter(), this.queryService.getJsonColumns());
 
-        if (objectDataRequest.getListFilter() != null) {
-            if (objectDataRequest.getListFilter().getSearch() != null &&
-                    objectDataRequest.getListFilter().getSearch().isEmpty() == false) {
-                throw new Exception("The ObjectDataRequest.ListFilter.Search property is not supported.");
-            }
-
-            if (objectDataRequest.getListFilter().getId() != null &&
-                    objectDataRequest.getListFilter().getId().isEmpty() == false) {
-                // If loading by identifier, we don't need to do anything else as that's the only required filter
-                sql += "AND id = '" + objectDataRequest.getListFilter().getId() + "' ";
-            } else {
-                // If a comparison hasn't been provided, we assume AND
-                if (objectDataRequest.getListFilter().getComparisonType() == null ||
-                        objectDataRequest.getListFilter().getComparisonType().isEmpty() == true) {
-                    objectDataRequest.getListFilter().setComparisonType("AND");
-                }
-
-                // Make sure the limit is valid
-                if (objectDataRequest.getListFilter().getLimit() < 1) {
-                    throw new Exception("The ObjectDataRequest.ListFilter.Limit cannot be less than 1. A limit of less than 1 will not return any data.");
-                }
-
-                // Make sure the offset is valid
-                if (objectDataRequest.getListFilter().getOffset() < 0) {
-                    throw new Exception("The ObjectDataRequest.ListFilter.Offset cannot be less than 0.");
-                }
-
-                if (objectDataRequest.getListFilter().getOrderByDirectionType() != null &&
-                        (objectDataRequest.getListFilter().getOrderByDirectionType().equalsIgnoreCase("ASC") == false ||
-                                objectDataRequest.getListFilter().getOrderByDirectionType().equalsIgnoreCase("DESC") == false)) {
-                    throw new Exception("The ObjectDataRequest.ListFilter.OrderByDirectionType isn't valid. Please provide ASC, DESC or null.");
-                }
+        // Only the id can be filtered and ordered on if the database can't look inside the stored properties
+        if (codec.isQueryable() == false &&
+                objectDataRequest.getListFilter() != null &&
+                ((objectDataRequest.getListFilter().getWhere() != null && objectDataRequest.getListFilter().getWhere().size() > 0) ||
+                        this.queryService.getOrderBy(objectDataRequest.getListFilter()) != null ||
+                        this.queryService.isSearch(objectDataRequest.getListFilter()) == true)) {
+            throw new Exception("The ObjectDataRequest.ListFilter cannot search, filter or order by properties when the objects are stored in the smile format. Please use the jsonb Storage Format to do this.");
+        }
 
-                if (objectDataRequest.getListFilter().getOrderByPropertyDeveloperName() != null &&
-                        objectDataRequest.getListFilter().getOrderByPropertyDeveloperName().isEmpty() == false) {
-                    // If an order by direction has not been specified, assume it's ascending
-                    if (objectDataRequest.getListFilter().getOrderByDirectionType() == null ||
-                            objectDataRequest.getListFilter().getOrderByDirectionType().isEmpty() == true) {
-                        objectDataRequest.getListFilter().setOrderByDirectionType("ASC");
-                    }
-                }
+        if (keyset != null) {
+            shape += "|keyset:" + (keyset.getValue() == null);
+        }
 
-                // Check to see if there are any where clauses specified
-                if (objectDataRequest.getListFilter().getWhere() != null &&
-                        objectDataRequest.getListFilter().getWhere().size() > 0) {
-                    for (ListFilterWhere listFilterWhere : objectDataRequest.getListFilter().getWhere()) {
-                        if (listFilterWhere.getColumnName() == null ||
-                                listFilterWhere.getColumnName().isEmpty() == true) {
-                            throw new Exception("The ObjectDataRequest.ListFilter.Where[].ColumnName must be provided for one of the WHERE entries.");
-                        }
+        // The value each row is ordered by is selected too, so the position of the last row can be given out
+        String orderBy = this.queryService.getOrderBy(objectDataRequest.getListFilter());
+        String orderByColumn = "NULL";
 
-                        // Validate the column name is OK
-                        this.bindingService.validateName(listFilterWhere.getColumnName());
+        if (orderBy != null) {
+            this.bindingService.validateName(orderBy);
 
-                        // If the user has not set a criteria type, we assume EQUAL
-                        if (listFilterWhere.getCriteriaType() == null) {
-                            listFilterWhere.setCriteriaType(CriteriaType.Equal);
-                        }
+            orderByColumn = this.queryService.getJsonColumns().getExpression(orderBy);
+        }
 
-                        if (listFilterWhere.getContentValue() == null ||
-                                listFilterWhere.getContentValue().isEmpty() == true) {
+        Query query = this.queryService.createQuery(shape);
+        query.append("SELECT id, " + codec.getColumn() + ", " + orderByColumn + ", version FROM typetables ");
+        query.append("WHERE name = ? ", objectDataRequest.getObjectDataType().getDeveloperName());
+        query.append("AND tenantid = ? ", authenticatedWho.getManyWhoTenantId());
 
-                        }
-                    }
-                }
+        if (objectDataRequest.getListFilter() != null) {
+            if (objectDataRequest.getListFilter().getId() != null &&
+                    objectDataRequest.getListFilter().getId().isEmpty() == false) {
+                // If loading by identifier, we don't need to do anything else as that's the only required filter
+                query.append("AND id = ? ", objectDataRequest.getListFilter().getId());
+            } else {
+                // Push the filtering, ordering and paging down into the database
+                this.queryService.compileListFilter(query, objectDataRequest.getListFilter(), this.queryService.getJsonColumns(), keyset);
             }
         }
 
-        return sql;
+        this.queryService.cacheQuery(shape, query);
+
+        return query;
     }
 }
@@ -0,0 +1,155 @@
+package com.manywho.services.backend.services;
+
+import com.manywho.services.backend.configuration.Settings;
+
+import javax.annotation.PreDestroy;
+import javax.ws.rs.container.AsyncResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the database work of requests on a dedicated, bounded set of threads, so the container threads are free to
+ * accept other requests while Postgres is slow. Once every thread is busy and the queue is full, requests are rejected
+ * straight away rather than piling up behind each other. This service must be bound as a singleton, as it holds the
+ * threads.
+ */
+public class ExecutionService {
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor saveExecutor;
+
+    public ExecutionService() {
+        int threads = Settings.getInteger(Settings.EXECUTION_THREADS, 20);
+
+        this.executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                1,
+                TimeUnit.MINUTES,
+                new ArrayBlockingQueue<>(Settings.getInteger(Settings.EXECUTION_QUEUE_SIZE, 100)),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "backend-execution-" + THREAD_COUNTER.incrementAndGet());
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+        );
+
+        this.executor.allowCoreThreadTimeOut(true);
+
+        // The partitions of parallel saves get their own threads, as a request waiting on work queued behind other
+        // requests on the same threads could deadlock. When these are all busy the partition runs on the request's own
+        // thread instead
+        int saveThreads = Settings.getInteger(Settings.SAVE_THREADS, 16);
+
+        this.saveExecutor = new ThreadPoolExecutor(
+                saveThreads,
+                saveThreads,
+                1,
+                TimeUnit.MINUTES,
+                new SynchronousQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "backend-save-" + THREAD_COUNTER.incrementAndGet());
+                    thread.setDaemon(true);
+
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+
+        this.saveExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Resumes the response with the result of the given work, or with the exception it throws. If asynchronous
+     * execution has been turned off, the work is run on the calling thread instead.
+     */
+    public void execute(AsyncResponse asyncResponse, Callable<?> callable) {
+        if (Settings.getBoolean(Settings.EXECUTION_ASYNCHRONOUS, true) == false) {
+            this.run(asyncResponse, callable);
+
+            return;
+        }
+
+        long timeout = Settings.getLong(Settings.EXECUTION_TIMEOUT, 30000);
+        AtomicReference<Future<?>> future = new AtomicReference<>();
+
+        // Give up on requests that take too long, which also stops them from running at all if they're still queued.
+        // This has to be set up before the work is submitted, as the response can't be changed once it's resumed
+        asyncResponse.setTimeoutHandler(response -> {
+            if (future.get() != null) {
+                future.get().cancel(true);
+            }
+
+            response.resume(new Exception("The request did not complete within " + timeout + "ms."));
+        });
+
+        asyncResponse.setTimeout(timeout, TimeUnit.MILLISECONDS);
+
+        try {
+            future.set(this.executor.submit(() -> this.run(asyncResponse, callable)));
+        } catch (RejectedExecutionException e) {
+            asyncResponse.resume(new Exception("The service is too busy to handle this request. Please try again shortly."));
+        }
+    }
+
+    /**
+     * Runs all of the given work at the same time and waits for it to finish, throwing the first failure if any of it
+     * failed.
+     */
+    public <T> List<T> invokeAll(List<Callable<T>> callables) throws Exception {
+        List<T> results = new ArrayList<>();
+
+        for (Future<T> future : this.saveExecutor.invokeAll(callables)) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+
+                throw e;
+            }
+        }
+
+        return results;
+    }
+
+    public int getActiveCount() {
+        return this.executor.getActiveCount();
+    }
+
+    public int getQueueDepth() {
+        return this.executor.getQueue().size();
+    }
+
+    @PreDestroy
+    public void close() {
+        this.executor.shutdownNow();
+        this.saveExecutor.shutdownNow();
+    }
+
+    private void run(AsyncResponse asyncResponse, Callable<?> callable) {
+        // The request may already have timed out while it was waiting in the queue
+        if (asyncResponse.isSuspended() == false) {
+            return;
+        }
+
+        try {
+            asyncResponse.resume(callable.call());
+        } catch (Throwable e) {
+            asyncResponse.resume(e);
+        }
+    }
+}
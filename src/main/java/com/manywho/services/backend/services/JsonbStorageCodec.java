@@ -0,0 +1,73 @@
+package com.manywho.services.backend.services;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Stores the properties as jsonb in the data column, which is the default. The database can filter, order and merge
+ * on the properties itself.
+ */
+public class JsonbStorageCodec implements StorageCodec {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    @Override
+    public String getColumn() {
+        return "data";
+    }
+
+    @Override
+    public String getParameter() {
+        return "CAST(? AS jsonb)";
+    }
+
+    @Override
+    public String getMerge() {
+        return "typetables.data || EXCLUDED.data";
+    }
+
+    @Override
+    public String getUpdate() {
+        return "data = data || CAST(? AS jsonb)";
+    }
+
+    @Override
+    public boolean isQueryable() {
+        return true;
+    }
+
+    @Override
+    public String getStoredCondition() {
+        return "databinary IS NULL";
+    }
+
+    @Override
+    public String getConversion() {
+        return "UPDATE typetables SET data = CAST(? AS jsonb), databinary = NULL WHERE id = ? AND databinary IS NOT NULL";
+    }
+
+    @Override
+    public void setValue(PreparedStatement preparedStatement, int index, String json) throws SQLException {
+        preparedStatement.setString(index, json);
+    }
+
+    @Override
+    public JsonParser createParser(ResultSet resultSet, int column) throws SQLException, IOException {
+        String json = resultSet.getString(column);
+
+        if (json == null) {
+            return null;
+        }
+
+        return JSON_FACTORY.createParser(json);
+    }
+
+    @Override
+    public String readJson(ResultSet resultSet, int column) throws SQLException {
+        return resultSet.getString(column);
+    }
+}
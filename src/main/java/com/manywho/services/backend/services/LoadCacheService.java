@@ -0,0 +1,305 @@
+package com.manywho.services.backend.services;
+
+import com.manywho.sdk.entities.run.elements.type.ListFilter;
+import com.manywho.sdk.entities.run.elements.type.ListFilterWhere;
+import com.manywho.sdk.entities.run.elements.type.Object;
+import com.manywho.sdk.entities.run.elements.type.ObjectCollection;
+import com.manywho.sdk.entities.run.elements.type.ObjectDataRequest;
+import com.manywho.sdk.entities.run.elements.type.ObjectDataTypeProperty;
+import com.manywho.sdk.entities.run.elements.type.Property;
+import com.manywho.sdk.entities.security.AuthenticatedWho;
+import com.manywho.services.backend.configuration.Configuration;
+import com.manywho.services.backend.configuration.Settings;
+import com.manywho.services.backend.entities.CacheMetrics;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An in-process cache of the objects returned by loads, keyed by the database, tenant, type and the normalised list
+ * filter of the request. Saves through this service invalidate every cached load for the same database and tenant that
+ * contains any of the saved types, but writes made by anything else (including other instances of this service) are
+ * only picked up once the entry expires, which is why the cache is off by default and the time to live is short. This
+ * service must be bound as a singleton, as it holds the cache.
+ *
+ * The cached objects are shared between every request that hits the same entry, so they must not be changed once
+ * they've been loaded.
+ */
+public class LoadCacheService {
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public boolean isEnabled() {
+        return Settings.getBoolean(Settings.LOAD_CACHE_ENABLED, false);
+    }
+
+    /**
+     * Gets the objects previously loaded for an identical request, or null if there aren't any that are still fresh.
+     */
+    public ObjectCollection get(String key) {
+        Entry entry = this.entries.get(key);
+
+        if (entry == null) {
+            this.misses.increment();
+
+            return null;
+        }
+
+        if (entry.expires < System.currentTimeMillis()) {
+            if (this.entries.remove(key, entry) == true) {
+                this.evictions.increment();
+            }
+
+            this.misses.increment();
+
+            return null;
+        }
+
+        this.hits.increment();
+
+        return entry.objectCollection;
+    }
+
+    /**
+     * Gets the generation of the given database and tenant, which must be read before loading from the database and
+     * given back when caching the result, so a load that raced with a save is never cached.
+     */
+    public long getGeneration(Configuration configuration, AuthenticatedWho authenticatedWho) {
+        return this.getGenerationCounter(configuration, authenticatedWho).get();
+    }
+
+    public void put(Configuration configuration, AuthenticatedWho authenticatedWho, ObjectDataRequest objectDataRequest, String key, long generation, ObjectCollection objectCollection) {
+        if (objectCollection == null) {
+            return;
+        }
+
+        // The types in the entry are the ones that make it stale when saved, which includes any child objects
+        Set<String> types = new HashSet<>();
+        types.add(objectDataRequest.getObjectDataType().getDeveloperName());
+
+        this.collectTypes(objectCollection, types);
+
+        int size = Settings.getInteger(Settings.LOAD_CACHE_SIZE, 1000);
+
+        if (this.entries.size() >= size) {
+            this.evict(size);
+        }
+
+        Entry entry = new Entry(
+                this.getTenantKey(configuration, authenticatedWho),
+                types,
+                objectCollection,
+                System.currentTimeMillis() + Settings.getLong(Settings.LOAD_CACHE_TIME_TO_LIVE, 5000)
+        );
+
+        this.entries.put(key, entry);
+
+        // If a save happened while we were loading, what we loaded may already be out of date
+        if (this.getGeneration(configuration, authenticatedWho) != generation) {
+            this.entries.remove(key, entry);
+        }
+    }
+
+    /**
+     * Removes every cached load for the database and tenant that contains any of the types in the given objects.
+     */
+    public void invalidate(Configuration configuration, AuthenticatedWho authenticatedWho, ObjectCollection objectCollection) {
+        this.getGenerationCounter(configuration, authenticatedWho).incrementAndGet();
+
+        Set<String> types = new HashSet<>();
+
+        this.collectTypes(objectCollection, types);
+
+        String tenantKey = this.getTenantKey(configuration, authenticatedWho);
+
+        for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+            if (entry.getValue().tenantKey.equals(tenantKey) == true &&
+                    this.containsAny(entry.getValue().types, types) == true &&
+                    this.entries.remove(entry.getKey(), entry.getValue()) == true) {
+                this.invalidations.increment();
+            }
+        }
+    }
+
+    /**
+     * Removes every cached load for the database and tenant, for when we can't tell which types have been changed.
+     */
+    public void invalidateAll(Configuration configuration, AuthenticatedWho authenticatedWho) {
+        this.getGenerationCounter(configuration, authenticatedWho).incrementAndGet();
+
+        String tenantKey = this.getTenantKey(configuration, authenticatedWho);
+
+        for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+            if (entry.getValue().tenantKey.equals(tenantKey) == true &&
+                    this.entries.remove(entry.getKey(), entry.getValue()) == true) {
+                this.invalidations.increment();
+            }
+        }
+    }
+
+    /**
+     * Builds the key of a load request. Everything that can change the objects returned is part of the key, with the
+     * list filter normalised so equivalent requests (e.g. a missing comparison type and AND) share an entry.
+     */
+    public String getKey(Configuration configuration, AuthenticatedWho authenticatedWho, ObjectDataRequest objectDataRequest) {
+        StringBuilder key = new StringBuilder();
+
+        this.appendPart(key, this.getTenantKey(configuration, authenticatedWho));
+        this.appendPart(key, configuration.getStorageMode());
+        this.appendPart(key, objectDataRequest.getObjectDataType().getDeveloperName());
+
+        if (objectDataRequest.getObjectDataType().getProperties() != null) {
+            for (ObjectDataTypeProperty objectDataTypeProperty : objectDataRequest.getObjectDataType().getProperties()) {
+                this.appendPart(key, objectDataTypeProperty.getDeveloperName());
+            }
+        }
+
+        ListFilter listFilter = objectDataRequest.getListFilter();
+
+        if (listFilter == null) {
+            return key.toString();
+        }
+
+        this.appendPart(key, "filter");
+        this.appendPart(key, listFilter.getId());
+        this.appendPart(key, listFilter.getSearch());
+        this.appendPart(key, this.normalise(listFilter.getComparisonType(), "AND"));
+
+        if (listFilter.getWhere() != null) {
+            for (ListFilterWhere listFilterWhere : listFilter.getWhere()) {
+                this.appendPart(key, "where");
+                this.appendPart(key, listFilterWhere.getColumnName());
+                this.appendPart(key, listFilterWhere.getCriteriaType() == null ? "Equal" : listFilterWhere.getCriteriaType().toString());
+                this.appendPart(key, listFilterWhere.getContentValue());
+            }
+        }
+
+        this.appendPart(key, listFilter.getOrderByPropertyDeveloperName());
+        this.appendPart(key, this.normalise(listFilter.getOrderByDirectionType(), "ASC"));
+        this.appendPart(key, String.valueOf(listFilter.getLimit()));
+        this.appendPart(key, String.valueOf(listFilter.getOffset()));
+
+        return key.toString();
+    }
+
+    public CacheMetrics getMetrics() {
+        CacheMetrics cacheMetrics = new CacheMetrics();
+        cacheMetrics.setEnabled(this.isEnabled());
+        cacheMetrics.setSize(this.entries.size());
+        cacheMetrics.setHits(this.hits.sum());
+        cacheMetrics.setMisses(this.misses.sum());
+        cacheMetrics.setEvictions(this.evictions.sum());
+        cacheMetrics.setInvalidations(this.invalidations.sum());
+
+        return cacheMetrics;
+    }
+
+    private void evict(int size) {
+        long now = System.currentTimeMillis();
+        String oldestKey = null;
+        Entry oldest = null;
+
+        // Expired entries go first, and if that doesn't make enough room, the entry closest to expiring goes too
+        for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+            if (entry.getValue().expires < now) {
+                if (this.entries.remove(entry.getKey(), entry.getValue()) == true) {
+                    this.evictions.increment();
+                }
+            } else if (oldest == null || entry.getValue().expires < oldest.expires) {
+                oldestKey = entry.getKey();
+                oldest = entry.getValue();
+            }
+        }
+
+        if (this.entries.size() >= size &&
+                oldest != null &&
+                this.entries.remove(oldestKey, oldest) == true) {
+            this.evictions.increment();
+        }
+    }
+
+    private AtomicLong getGenerationCounter(Configuration configuration, AuthenticatedWho authenticatedWho) {
+        return this.generations.computeIfAbsent(this.getTenantKey(configuration, authenticatedWho), k -> new AtomicLong());
+    }
+
+    /**
+     * Identifies the database and tenant, including the credentials, so nothing held against it can be read by a
+     * request using someone else's.
+     */
+    public String getTenantKey(Configuration configuration, AuthenticatedWho authenticatedWho) {
+        StringBuilder key = new StringBuilder();
+
+        this.appendPart(key, configuration.getUrl());
+        this.appendPart(key, configuration.getUsername());
+        this.appendPart(key, configuration.getPassword());
+        this.appendPart(key, authenticatedWho.getManyWhoTenantId());
+
+        return key.toString();
+    }
+
+    private void collectTypes(ObjectCollection objectCollection, Set<String> types) {
+        if (objectCollection == null) {
+            return;
+        }
+
+        for (Object object : objectCollection) {
+            types.add(object.getDeveloperName());
+
+            if (object.getProperties() != null) {
+                for (Property property : object.getProperties()) {
+                    this.collectTypes(property.getObjectData(), types);
+                }
+            }
+        }
+    }
+
+    private boolean containsAny(Set<String> types, Set<String> otherTypes) {
+        for (String type : otherTypes) {
+            if (types.contains(type) == true) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private String normalise(String value, String defaultValue) {
+        if (value == null ||
+                value.isEmpty() == true) {
+            return defaultValue;
+        }
+
+        return value.toUpperCase();
+    }
+
+    private void appendPart(StringBuilder key, String part) {
+        // Each part is prefixed with its length, so no value can be crafted to look like several parts
+        if (part == null) {
+            key.append("-1|");
+        } else {
+            key.append(part.length()).append(':').append(part).append('|');
+        }
+    }
+
+    private static class Entry {
+        private final String tenantKey;
+        private final Set<String> types;
+        private final ObjectCollection objectCollection;
+        private final long expires;
+
+        private Entry(String tenantKey, Set<String> types, ObjectCollection objectCollection, long expires) {
+            this.tenantKey = tenantKey;
+            this.types = types;
+            this.objectCollection = objectCollection;
+            this.expires = expires;
+        }
+    }
+}
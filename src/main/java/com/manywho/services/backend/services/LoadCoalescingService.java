@@ -0,0 +1,82 @@
+package com.manywho.services.backend.services;
+
+import com.manywho.sdk.entities.run.elements.type.ObjectCollection;
+import com.manywho.services.backend.configuration.Settings;
+
+import javax.inject.Inject;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Shares a single load between every identical request that arrives while it's running, so a burst of the same load
+ * (e.g. when a popular flow is launched) only queries the database once. Loads are only shared while they're in
+ * flight, and nothing is kept once they finish. This service must be bound as a singleton, as it holds the loads that
+ * are in flight.
+ */
+public class LoadCoalescingService {
+    private final Map<String, CompletableFuture<ObjectCollection>> inFlight = new ConcurrentHashMap<>();
+
+    @Inject
+    private MetricsService metricsService;
+
+    public boolean isEnabled() {
+        return Settings.getBoolean(Settings.LOAD_COALESCING, true);
+    }
+
+    /**
+     * Runs the load, unless an identical one (with the same key from LoadCacheService.getKey) is already running, in
+     * which case this waits for that one and returns the same objects, or throws the same error. The objects are shared
+     * in the same way as cached loads, so they must not be changed. Waiting is bounded by the
+     * backend.load.coalescingTimeout setting, so a load that never finishes can't hold up every request that shares it.
+     */
+    public ObjectCollection execute(String key, String tenantId, String typeName, Callable<ObjectCollection> load) throws Exception {
+        CompletableFuture<ObjectCollection> future = new CompletableFuture<>();
+        CompletableFuture<ObjectCollection> existing = this.inFlight.putIfAbsent(key, future);
+
+        if (existing != null) {
+            long start = this.metricsService.start();
+
+            long timeout = Settings.getLong(Settings.LOAD_COALESCING_TIMEOUT, 30000);
+
+            try {
+                return existing.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+
+                throw e;
+            } catch (TimeoutException e) {
+                throw new Exception("The identical load this request was waiting on did not finish within " + timeout + "ms.");
+            } finally {
+                // Every coalesced request is counted, along with how long it waited for the load it shared
+                this.metricsService.recordTime(MetricsService.LOAD_COALESCED, tenantId, typeName, start);
+            }
+        }
+
+        try {
+            ObjectCollection objectCollection = load.call();
+
+            future.complete(objectCollection);
+
+            return objectCollection;
+        } catch (Throwable e) {
+            // Errors have to be passed on too, otherwise the requests waiting on this load would never be woken
+            future.completeExceptionally(e);
+
+            throw e;
+        } finally {
+            // Requests arriving from now on start a load of their own, as this one may already be out of date
+            this.inFlight.remove(key, future);
+        }
+    }
+}
@@ -2,16 +2,36 @@ package com.manywho.services.backend.services;
 
 import com.manywho.sdk.entities.run.elements.type.*;
 import com.manywho.sdk.entities.run.elements.type.Object;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.manywho.services.backend.entities.ObjectRow;
 import org.json.JSONObject;
 
 import javax.inject.Inject;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 public class MapperService {
-    @Inject
-    private BindingService bindingService;
+    // The property loaded objects carry the version of their row in. It's declared in every type a binding is generated
+    // for, so flows keep it along with the rest of the object. If it's given back when the object is saved, the save
+    // fails if the row has been changed since, rather than overwriting the change. Objects saved without it are
+    // written whatever their row's version is
+    public static final String VERSION_PROPERTY = "__version";
+
+    // Thread safe, and expensive enough to create that we only want the one
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
 
     @Inject
-    private DatabaseService databaseService;
+    private BindingService bindingService;
 
     public com.manywho.sdk.entities.run.elements.type.Object convertJSONObjectToObject(String name, String externalId, JSONObject jsonObject) throws Exception {
         if (name == null ||
@@ -28,7 +48,7 @@ public class MapperService {
         }
 
         // Validate the external identifier
-        this.databaseService.validateUUID(externalId);
+        this.bindingService.validateUUID(externalId);
 
         Object object = null;
 
@@ -41,14 +61,18 @@ public class MapperService {
             object.setProperties(new PropertyCollection());
 
             // Go through each of the keys in the json object and grab out the data
-            while (jsonObject.keys().hasNext()) {
-                String key = (String) jsonObject.keys().next();
+            Iterator keys = jsonObject.keys();
 
-                // Add each property individually. For now we assume all properties are strings
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+
+                java.lang.Object value = jsonObject.get(key);
+
+                // Add each property individually, giving numbers and booleans back as their text
                 object.getProperties().add(
                         new Property(
                                 key,
-                                jsonObject.getString(key)
+                                value == null || JSONObject.NULL.equals(value) ? null : value.toString()
                         )
                 );
             }
@@ -56,4 +80,145 @@ public class MapperService {
 
         return object;
     }
+
+    /**
+     * Converts a row read from the database straight into an object, reading the json as a stream rather than building
+     * a JSONObject first. Nothing is validated, as everything in the database was validated when it was saved.
+     */
+    public Object convertRowToObject(String name, String externalId, Reader data) throws Exception {
+        Object object = new Object();
+        object.setDeveloperName(name);
+        object.setExternalId(externalId);
+        object.setProperties(new PropertyCollection());
+
+        if (data == null) {
+            return object;
+        }
+
+        try (JsonParser parser = JSON_FACTORY.createParser(data)) {
+            this.readProperties(object, parser);
+        }
+
+        return object;
+    }
+
+    /**
+     * Converts a row into an object, reading the properties from a parser over however they're stored. The parser is
+     * left open, and can be null if the row has no properties.
+     */
+    public Object convertRowToObject(String name, String externalId, JsonParser parser) throws Exception {
+        Object object = new Object();
+        object.setDeveloperName(name);
+        object.setExternalId(externalId);
+        object.setProperties(new PropertyCollection());
+
+        if (parser != null) {
+            this.readProperties(object, parser);
+        }
+
+        return object;
+    }
+
+    private void readProperties(Object object, JsonParser parser) throws Exception {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new Exception("The data for the object " + object.getExternalId() + " is not a json object.");
+        }
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+
+            object.getProperties().add(new Property(key, this.readValue(parser, parser.nextToken())));
+        }
+    }
+
+    public Object convertRowToObject(String name, String externalId, String data) throws Exception {
+        return this.convertRowToObject(name, externalId, data == null ? null : new StringReader(data));
+    }
+
+    private String readValue(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case VALUE_NULL:
+                return null;
+            case VALUE_STRING:
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                // Numbers keep the exact text they were stored with, so nothing is lost to floating point
+                return parser.getText();
+            default:
+                // Anything structured is given back as its json
+                StringWriter writer = new StringWriter();
+
+                try (JsonGenerator generator = JSON_FACTORY.createGenerator(writer)) {
+                    generator.copyCurrentStructure(parser);
+                }
+
+                return writer.toString();
+        }
+    }
+
+    public void attachDescendants(ObjectCollection objects, List<ObjectRow> objectRows) throws Exception {
+        if (objects == null ||
+                objectRows == null ||
+                objectRows.size() == 0) {
+            return;
+        }
+
+        // Index every object by its id, so each child can find its parent however deep it is
+        Map<String, Object> index = new HashMap<>();
+
+        for (Object object : objects) {
+            index.put(object.getExternalId(), object);
+        }
+
+        List<Object> children = new ArrayList<>(objectRows.size());
+
+        for (ObjectRow objectRow : objectRows) {
+            Object child = this.convertRowToObject(objectRow.getName(), objectRow.getId(), objectRow.getData());
+
+            if (objectRow.getVersion() != null) {
+                child.getProperties().add(new Property(VERSION_PROPERTY, String.valueOf(objectRow.getVersion())));
+            }
+
+            index.put(objectRow.getId(), child);
+            children.add(child);
+        }
+
+        for (int i = 0; i < objectRows.size(); i++) {
+            ObjectRow objectRow = objectRows.get(i);
+            Object parent = index.get(objectRow.getParentId());
+
+            if (parent == null) {
+                continue;
+            }
+
+            // Rows saved before the parent property was recorded are put in a property named after their type
+            String propertyName = objectRow.getParentProperty() != null ? objectRow.getParentProperty() : objectRow.getName();
+
+            if (parent.getProperties() == null) {
+                parent.setProperties(new PropertyCollection());
+            }
+
+            Property property = null;
+
+            for (Property existingProperty : parent.getProperties()) {
+                if (propertyName.equals(existingProperty.getDeveloperName()) == true) {
+                    property = existingProperty;
+                    break;
+                }
+            }
+
+            if (property == null) {
+                property = new Property(propertyName, null);
+                parent.getProperties().add(property);
+            }
+
+            if (property.getObjectData() == null) {
+                property.setObjectData(new ObjectCollection());
+            }
+
+            property.getObjectData().add(children.get(i));
+        }
+    }
 }
@@ -0,0 +1,210 @@
+package com.manywho.services.backend.services;
+
+import com.manywho.services.backend.configuration.Settings;
+import com.manywho.services.backend.entities.OperationMetrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records how long each operation (and each stage of an operation) takes, how many rows it touched and how big the
+ * payloads were, tagged by tenant and type. Everything is kept in striped counters, so recording is cheap enough to
+ * leave on under load. This service must be bound as a singleton, as it holds the counters.
+ */
+public class MetricsService {
+    public static final String LOAD = "load";
+    public static final String LOAD_ACQUIRE = "load.acquire";
+    public static final String LOAD_BUILD = "load.build";
+    public static final String LOAD_QUERY = "load.query";
+    public static final String LOAD_MAP = "load.map";
+    public static final String LOAD_DESCENDANTS = "load.descendants";
+    public static final String LOAD_COALESCED = "load.coalesced";
+    public static final String SAVE = "save";
+    public static final String SAVE_ACQUIRE = "save.acquire";
+    public static final String SAVE_FLATTEN = "save.flatten";
+    public static final String SAVE_WRITE = "save.write";
+    public static final String DELETE = "delete";
+    public static final String DELETE_ACQUIRE = "delete.acquire";
+    public static final String EXPORT = "export";
+    public static final String IMPORT = "import";
+    public static final String RESPONSE_SERIALISE = "response.serialise";
+
+    // The upper bound (in milliseconds) of each latency bucket, with a final bucket for everything slower
+    private static final long[] BUCKETS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    // Used for everything once there are too many series, so a service with lots of tenants can't use unbounded memory
+    private static final String OTHER = "other";
+
+    private final Map<String, Series> series = new ConcurrentHashMap<>();
+
+    public boolean isEnabled() {
+        return Settings.getBoolean(Settings.METRICS_ENABLED, true);
+    }
+
+    /**
+     * Gets the time to pass back when recording how long something took, which is only looked up if metrics are on.
+     */
+    public long start() {
+        if (this.isEnabled() == false) {
+            return 0;
+        }
+
+        return System.nanoTime();
+    }
+
+    public void recordTime(String operation, String tenantId, String typeName, long start) {
+        if (start == 0) {
+            return;
+        }
+
+        this.recordNanos(operation, tenantId, typeName, System.nanoTime() - start);
+    }
+
+    public void recordNanos(String operation, String tenantId, String typeName, long nanos) {
+        if (this.isEnabled() == false) {
+            return;
+        }
+
+        Series series = this.getSeries(operation, tenantId, typeName);
+
+        series.count.increment();
+        series.totalNanos.add(nanos);
+        series.maximumNanos.accumulateAndGet(nanos, Math::max);
+
+        long millis = nanos / 1000000;
+        int bucket = 0;
+
+        while (bucket < BUCKETS.length && millis > BUCKETS[bucket]) {
+            bucket++;
+        }
+
+        series.buckets[bucket].increment();
+    }
+
+    public void recordRows(String operation, String tenantId, String typeName, long rows) {
+        if (this.isEnabled() == false) {
+            return;
+        }
+
+        this.getSeries(operation, tenantId, typeName).rows.add(rows);
+    }
+
+    /**
+     * Records the size of the payload, in characters of json (or bytes, for serialised responses).
+     */
+    public void recordPayloadSize(String operation, String tenantId, String typeName, long payloadSize) {
+        if (this.isEnabled() == false) {
+            return;
+        }
+
+        this.getSeries(operation, tenantId, typeName).payloadSize.add(payloadSize);
+    }
+
+    public void recordError(String operation, String tenantId, String typeName) {
+        if (this.isEnabled() == false) {
+            return;
+        }
+
+        this.getSeries(operation, tenantId, typeName).errors.increment();
+    }
+
+    /**
+     * Gets the metrics of a single tenant, so one tenant can't see which other tenants (or which of their types) the
+     * service has been used by. The shared series that everything goes into once there are too many are left out, as
+     * they mix tenants together.
+     */
+    public List<OperationMetrics> getMetrics(String tenantId) {
+        List<OperationMetrics> metrics = new ArrayList<>();
+
+        if (tenantId == null) {
+            return metrics;
+        }
+
+        for (Series series : this.series.values()) {
+            if (tenantId.equals(series.tenantId) == true) {
+                metrics.add(series.snapshot());
+            }
+        }
+
+        return metrics;
+    }
+
+    private Series getSeries(String operation, String tenantId, String typeName) {
+        String key = operation + "|" + tenantId + "|" + typeName;
+        Series series = this.series.get(key);
+
+        if (series != null) {
+            return series;
+        }
+
+        if (this.series.size() >= Settings.getInteger(Settings.METRICS_MAXIMUM_SERIES, 2000)) {
+            tenantId = OTHER;
+            typeName = OTHER;
+            key = operation + "|" + OTHER + "|" + OTHER;
+        }
+
+        String finalTenantId = tenantId;
+        String finalTypeName = typeName;
+
+        return this.series.computeIfAbsent(key, k -> new Series(operation, finalTenantId, finalTypeName));
+    }
+
+    private static class Series {
+        private final String operation;
+        private final String tenantId;
+        private final String typeName;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder payloadSize = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maximumNanos = new AtomicLong();
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+
+        private Series(String operation, String tenantId, String typeName) {
+            this.operation = operation;
+            this.tenantId = tenantId;
+            this.typeName = typeName;
+
+            for (int i = 0; i < this.buckets.length; i++) {
+                this.buckets[i] = new LongAdder();
+            }
+        }
+
+        private OperationMetrics snapshot() {
+            OperationMetrics operationMetrics = new OperationMetrics();
+            operationMetrics.setOperation(this.operation);
+            operationMetrics.setTenantId(this.tenantId);
+            operationMetrics.setTypeName(this.typeName);
+
+            long count = this.count.sum();
+
+            operationMetrics.setCount(count);
+            operationMetrics.setErrors(this.errors.sum());
+            operationMetrics.setRows(this.rows.sum());
+            operationMetrics.setPayloadSize(this.payloadSize.sum());
+            operationMetrics.setMaximumMillis(this.maximumNanos.get() / 1000000.0);
+
+            if (count > 0) {
+                operationMetrics.setAverageMillis(this.totalNanos.sum() / 1000000.0 / count);
+            }
+
+            Map<String, Long> latencyBuckets = new LinkedHashMap<>();
+
+            for (int i = 0; i < BUCKETS.length; i++) {
+                latencyBuckets.put(String.valueOf(BUCKETS[i]), this.buckets[i].sum());
+            }
+
+            latencyBuckets.put("+Inf", this.buckets[BUCKETS.length].sum());
+
+            operationMetrics.setLatencyBuckets(latencyBuckets);
+
+            return operationMetrics;
+        }
+    }
+}
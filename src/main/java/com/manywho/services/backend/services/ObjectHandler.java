@@ -0,0 +1,10 @@
+package com.manywho.services.backend.services;
+
+import com.manywho.sdk.entities.run.elements.type.Object;
+
+/**
+ * Receives each object as it's read from the database, so large loads don't need to be held in memory all at once.
+ */
+public interface ObjectHandler {
+    void handle(Object object) throws Exception;
+}
@@ -0,0 +1,500 @@
+package com.manywho.services.backend.services;
+
+import com.manywho.sdk.entities.run.elements.type.ListFilter;
+import com.manywho.sdk.entities.run.elements.type.ListFilterWhere;
+import com.manywho.sdk.enums.CriteriaType;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.manywho.services.backend.configuration.Settings;
+import com.manywho.services.backend.entities.Keyset;
+import com.manywho.services.backend.entities.Query;
+
+import javax.inject.Inject;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles a ListFilter into parameterised SQL over the json held in the data column, so the filtering, ordering and
+ * paging all happen in the database.
+ *
+ * The SQL for each shape of query (where it's loaded from, the criteria and columns of each WHERE entry and the order
+ * column) is cached as a template, so requests of the same shape send exactly the same SQL. This lets the driver reuse
+ * its server side prepared statements instead of Postgres planning every query again. This service must be bound as a
+ * singleton, as it holds the templates.
+ *
+ * Pages can also be loaded by keyset, where the query seeks straight past the last row of the previous page instead of
+ * using an offset. The position is handed out as an opaque continuation token, and the position at the end of each
+ * page is remembered so the next page can seek to it even when it's asked for by offset.
+ */
+public class QueryService {
+    // Matches the values we're happy to compare as numbers, both in Java and in the database (this deliberately avoids
+    // using ? in the expression so it's never mistaken for a parameter placeholder)
+    private static final String NUMBER_EXPRESSION = "^-{0,1}[0-9]+([.][0-9]+){0,1}$";
+    private static final Pattern NUMBER_PATTERN = Pattern.compile(NUMBER_EXPRESSION);
+
+    // Properties stored in the json of the typetables data column. The name has already been validated as only
+    // containing lower case letters, numbers and underscores. This must match the expression used by the property
+    // indexes in the SchemaService, otherwise they won't be used
+    private static final ColumnResolver JSON_COLUMNS = new ColumnResolver() {
+        @Override
+        public String getExpression(String name) {
+            return "(data->>'" + name + "')";
+        }
+
+        @Override
+        public String getType(String name) {
+            return null;
+        }
+
+        @Override
+        public String getSearchExpression() {
+            return "datasearch";
+        }
+    };
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    // The text search configuration the datasearch column is built with. The simple configuration doesn't stem or drop
+    // any words, as property values are as likely to be names and codes as they are to be written in a language
+    public static final String SEARCH_CONFIGURATION = "simple";
+
+    private final Map<String, String> templates = new ConcurrentHashMap<>();
+    private final Map<String, Keyset> keysets = new ConcurrentHashMap<>();
+
+    @Inject
+    private BindingService bindingService;
+
+    /**
+     * Creates a query for the given shape, which will already have its SQL if a query of the same shape has been built
+     * before. The query must still be built in the same way, so that its parameters are collected.
+     */
+    public Query createQuery(String shape) {
+        String template = this.templates.get(shape);
+
+        if (template != null) {
+            return new Query(template);
+        }
+
+        return new Query();
+    }
+
+    public void cacheQuery(String shape, Query query) {
+        // Once the cache is full we stop adding to it, as there's no point churning it with unusual shapes
+        if (query.isTemplated() == false &&
+                this.templates.size() < Settings.getInteger(Settings.QUERY_TEMPLATE_CACHE_SIZE, 1000)) {
+            this.templates.putIfAbsent(shape, query.getSql());
+        }
+    }
+
+    /**
+     * Describes everything about a request that changes the text of the SQL compiled for it, but none of the values
+     * that are bound as parameters.
+     */
+    public String getShape(String source, ListFilter listFilter, ColumnResolver columnResolver) throws Exception {
+        StringBuilder shape = new StringBuilder(source);
+
+        if (listFilter == null) {
+            return shape.toString();
+        }
+
+        if (listFilter.getId() != null &&
+                listFilter.getId().isEmpty() == false) {
+            return shape.append("|id").toString();
+        }
+
+        shape.append("|").append(listFilter.getComparisonType() == null || listFilter.getComparisonType().isEmpty() == true ? "AND" : listFilter.getComparisonType().toUpperCase());
+
+        if (listFilter.getWhere() != null) {
+            for (ListFilterWhere listFilterWhere : listFilter.getWhere()) {
+                String value = listFilterWhere.getContentValue();
+                boolean empty = value == null || value.isEmpty() == true;
+
+                shape.append("|where:")
+                        .append(listFilterWhere.getColumnName()).append(":")
+                        .append(listFilterWhere.getCriteriaType() == null ? CriteriaType.Equal : listFilterWhere.getCriteriaType()).append(":")
+                        .append(listFilterWhere.getColumnName() == null ? null : columnResolver.getType(listFilterWhere.getColumnName())).append(":")
+                        .append(empty).append(":")
+                        .append(empty == false && NUMBER_PATTERN.matcher(value).matches()).append(":")
+                        .append(Boolean.parseBoolean(value));
+            }
+        }
+
+        if (this.isSearch(listFilter) == true) {
+            shape.append("|search");
+        }
+
+        if (listFilter.getOrderByPropertyDeveloperName() != null &&
+                listFilter.getOrderByPropertyDeveloperName().isEmpty() == false) {
+            shape.append("|order:")
+                    .append(listFilter.getOrderByPropertyDeveloperName()).append(":")
+                    .append(listFilter.getOrderByDirectionType() == null || listFilter.getOrderByDirectionType().isEmpty() == true ? "ASC" : listFilter.getOrderByDirectionType().toUpperCase());
+        }
+
+        return shape.toString();
+    }
+
+    /**
+     * Gets the position that an earlier page ended at, for a page of the same query starting at the given offset.
+     */
+    public Keyset getKeyset(String key) {
+        return this.keysets.get(key);
+    }
+
+    public void cacheKeyset(String key, Keyset keyset) {
+        // Every page of every query has its own position, so rather than tracking which are used, the lot is thrown
+        // away once it's full and it fills up again with the pages being loaded now
+        if (this.keysets.size() >= Settings.getInteger(Settings.LOAD_KEYSET_CACHE_SIZE, 10000)) {
+            this.keysets.clear();
+        }
+
+        this.keysets.put(key, keyset);
+    }
+
+    public String encodeKeyset(Keyset keyset) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(outputStream)) {
+            generator.writeStartArray();
+            generator.writeString(keyset.getOrderBy());
+            generator.writeString(keyset.getDirection());
+            generator.writeString(keyset.getValue());
+            generator.writeString(keyset.getId());
+            generator.writeEndArray();
+        }
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(outputStream.toByteArray());
+    }
+
+    /**
+     * Turns a continuation token back into a position, making sure it was made for a query with the same ordering.
+     */
+    public Keyset decodeKeyset(String token, ListFilter listFilter) throws Exception {
+        String[] values = new String[4];
+
+        try (JsonParser parser = JSON_FACTORY.createParser(Base64.getUrlDecoder().decode(token))) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new Exception("The continuation token is not valid.");
+            }
+
+            for (int i = 0; i < values.length; i++) {
+                JsonToken jsonToken = parser.nextToken();
+
+                if (jsonToken == JsonToken.VALUE_STRING) {
+                    values[i] = parser.getText();
+                } else if (jsonToken != JsonToken.VALUE_NULL) {
+                    throw new Exception("The continuation token is not valid.");
+                }
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            throw new Exception("The continuation token is not valid.");
+        }
+
+        Keyset keyset = new Keyset(values[0], values[1], values[2], values[3]);
+
+        if (keyset.getId() == null ||
+                Objects.equals(keyset.getOrderBy(), this.getOrderBy(listFilter)) == false ||
+                Objects.equals(keyset.getDirection(), this.getOrderByDirection(listFilter)) == false) {
+            throw new Exception("The continuation token was not created for a query with the same ordering.");
+        }
+
+        return keyset;
+    }
+
+    /**
+     * Gets the name of the property the list filter orders by, or null if it's only ordered by the id.
+     */
+    public String getOrderBy(ListFilter listFilter) {
+        if (listFilter == null ||
+                listFilter.getOrderByPropertyDeveloperName() == null ||
+                listFilter.getOrderByPropertyDeveloperName().isEmpty() == true) {
+            return null;
+        }
+
+        return listFilter.getOrderByPropertyDeveloperName();
+    }
+
+    /**
+     * Checks if the list filter searches the properties, rather than (or as well as) filtering them.
+     */
+    public boolean isSearch(ListFilter listFilter) {
+        return listFilter != null &&
+                listFilter.getSearch() != null &&
+                listFilter.getSearch().trim().isEmpty() == false;
+    }
+
+    public String getOrderByDirection(ListFilter listFilter) {
+        if (this.getOrderBy(listFilter) == null) {
+            return null;
+        }
+
+        if (listFilter.getOrderByDirectionType() == null ||
+                listFilter.getOrderByDirectionType().isEmpty() == true) {
+            return "ASC";
+        }
+
+        return listFilter.getOrderByDirectionType().toUpperCase();
+    }
+
+    public ColumnResolver getJsonColumns() {
+        return JSON_COLUMNS;
+    }
+
+    public void compileListFilter(Query query, ListFilter listFilter) throws Exception {
+        this.compileListFilter(query, listFilter, JSON_COLUMNS);
+    }
+
+    public void compileListFilter(Query query, ListFilter listFilter, ColumnResolver columnResolver) throws Exception {
+        this.compileListFilter(query, listFilter, columnResolver, null);
+    }
+
+    /**
+     * Compiles the list filter, starting the page straight after the given position instead of at the offset if one
+     * is given. The SQL is different depending on whether the position has a value, so that must be part of the shape.
+     */
+    public void compileListFilter(Query query, ListFilter listFilter, ColumnResolver columnResolver, Keyset keyset) throws Exception {
+        if (query == null) {
+            throw new Exception("The Query object cannot be null.");
+        }
+
+        if (listFilter == null) {
+            throw new Exception("The ListFilter object cannot be null.");
+        }
+
+        // If a comparison hasn't been provided, we assume AND
+        if (listFilter.getComparisonType() == null ||
+                listFilter.getComparisonType().isEmpty() == true) {
+            listFilter.setComparisonType("AND");
+        }
+
+        if (listFilter.getComparisonType().equalsIgnoreCase("AND") == false &&
+                listFilter.getComparisonType().equalsIgnoreCase("OR") == false) {
+            throw new Exception("The ObjectDataRequest.ListFilter.ComparisonType isn't valid. Please provide AND, OR or null.");
+        }
+
+        // Make sure the limit is valid
+        if (listFilter.getLimit() < 1) {
+            throw new Exception("The ObjectDataRequest.ListFilter.Limit cannot be less than 1. A limit of less than 1 will not return any data.");
+        }
+
+        // Make sure the offset is valid
+        if (listFilter.getOffset() < 0) {
+            throw new Exception("The ObjectDataRequest.ListFilter.Offset cannot be less than 0.");
+        }
+
+        if (listFilter.getOrderByDirectionType() != null &&
+                listFilter.getOrderByDirectionType().isEmpty() == false &&
+                listFilter.getOrderByDirectionType().equalsIgnoreCase("ASC") == false &&
+                listFilter.getOrderByDirectionType().equalsIgnoreCase("DESC") == false) {
+            throw new Exception("The ObjectDataRequest.ListFilter.OrderByDirectionType isn't valid. Please provide ASC, DESC or null.");
+        }
+
+        if (listFilter.getOrderByPropertyDeveloperName() != null &&
+                listFilter.getOrderByPropertyDeveloperName().isEmpty() == false) {
+            // Validate the order by name is OK, as it's written into the sql
+            this.bindingService.validateName(listFilter.getOrderByPropertyDeveloperName());
+
+            // If an order by direction has not been specified, assume it's ascending
+            if (listFilter.getOrderByDirectionType() == null ||
+                    listFilter.getOrderByDirectionType().isEmpty() == true) {
+                listFilter.setOrderByDirectionType("ASC");
+            }
+        }
+
+        // Check to see if there are any where clauses specified
+        if (listFilter.getWhere() != null &&
+                listFilter.getWhere().size() > 0) {
+            String comparisonType = listFilter.getComparisonType().toUpperCase();
+            boolean first = true;
+
+            query.append("AND (");
+
+            for (ListFilterWhere listFilterWhere : listFilter.getWhere()) {
+                if (listFilterWhere.getColumnName() == null ||
+                        listFilterWhere.getColumnName().isEmpty() == true) {
+                    throw new Exception("The ObjectDataRequest.ListFilter.Where[].ColumnName must be provided for one of the WHERE entries.");
+                }
+
+                // Validate the column name is OK
+                this.bindingService.validateName(listFilterWhere.getColumnName());
+
+                // If the user has not set a criteria type, we assume EQUAL
+                if (listFilterWhere.getCriteriaType() == null) {
+                    listFilterWhere.setCriteriaType(CriteriaType.Equal);
+                }
+
+                if (first == false) {
+                    query.append(" " + comparisonType + " ");
+                }
+
+                this.compileWhere(query, listFilterWhere, columnResolver);
+
+                first = false;
+            }
+
+            query.append(") ");
+        }
+
+        // Every word of the search must appear in one of the properties, using the index of the words in each row
+        String search = null;
+
+        if (this.isSearch(listFilter) == true) {
+            if (columnResolver.getSearchExpression() == null) {
+                throw new Exception("The ObjectDataRequest.ListFilter.Search property is not supported for this type.");
+            }
+
+            search = "plainto_tsquery('" + SEARCH_CONFIGURATION + "', ?)";
+
+            query.append("AND " + columnResolver.getSearchExpression() + " @@ " + search + " ", listFilter.getSearch());
+        }
+
+        if (keyset != null) {
+            this.compileKeyset(query, listFilter, columnResolver, keyset);
+        }
+
+        // Always finish the ordering with the id, so paging through rows with the same value is stable
+        if (listFilter.getOrderByPropertyDeveloperName() != null &&
+                listFilter.getOrderByPropertyDeveloperName().isEmpty() == false) {
+            query.append("ORDER BY " + columnResolver.getExpression(listFilter.getOrderByPropertyDeveloperName()) + " " + listFilter.getOrderByDirectionType().toUpperCase() + ", id ASC ");
+        } else if (search != null) {
+            // Without an order, search results come back with the best matches first
+            query.append("ORDER BY ts_rank(" + columnResolver.getSearchExpression() + ", " + search + ") DESC, id ASC ", listFilter.getSearch());
+        } else {
+            query.append("ORDER BY id ASC ");
+        }
+
+        query.append("LIMIT ? ", listFilter.getLimit());
+
+        // The position already says where the page starts, so the offset is ignored
+        if (keyset == null) {
+            query.append("OFFSET ? ", listFilter.getOffset());
+        }
+    }
+
+    private void compileKeyset(Query query, ListFilter listFilter, ColumnResolver columnResolver, Keyset keyset) throws Exception {
+        if (keyset.getOrderBy() == null) {
+            query.append("AND id > ? ", keyset.getId());
+
+            return;
+        }
+
+        String column = columnResolver.getExpression(keyset.getOrderBy());
+        String type = columnResolver.getType(keyset.getOrderBy());
+        String parameter = type != null && type.equals("text") == false ? "CAST(? AS " + type + ")" : "?";
+
+        // Nulls sort after everything else in ascending order and before everything else in descending order, and rows
+        // with the same value are always ordered by their id
+        if (keyset.getDirection().equals("DESC") == true) {
+            if (keyset.getValue() == null) {
+                query.append("AND ((" + column + " IS NULL AND id > ?) OR " + column + " IS NOT NULL) ", keyset.getId());
+            } else {
+                query.append("AND (" + column + " < " + parameter + " ", keyset.getValue());
+                query.append("OR (" + column + " = " + parameter + " ", keyset.getValue());
+                query.append("AND id > ?)) ", keyset.getId());
+            }
+        } else {
+            if (keyset.getValue() == null) {
+                query.append("AND " + column + " IS NULL AND id > ? ", keyset.getId());
+            } else {
+                query.append("AND (" + column + " > " + parameter + " ", keyset.getValue());
+                query.append("OR (" + column + " = " + parameter + " ", keyset.getValue());
+                query.append("AND id > ?) OR " + column + " IS NULL) ", keyset.getId());
+            }
+        }
+    }
+
+    private void compileWhere(Query query, ListFilterWhere listFilterWhere, ColumnResolver columnResolver) throws Exception {
+        String column = columnResolver.getExpression(listFilterWhere.getColumnName());
+        String type = columnResolver.getType(listFilterWhere.getColumnName());
+        String value = listFilterWhere.getContentValue();
+        boolean empty = value == null || value.isEmpty() == true;
+
+        // Typed columns compare against the value cast to the column's type, and can only be empty by being null
+        boolean typed = type != null && type.equals("text") == false;
+        String parameter = typed == true ? "CAST(? AS " + type + ")" : "?";
+        String isEmpty = typed == true ? column + " IS NULL" : "(" + column + " IS NULL OR " + column + " = '')";
+        String isNotEmpty = typed == true ? column + " IS NOT NULL" : "(" + column + " IS NOT NULL AND " + column + " <> '')";
+        String text = typed == true ? "CAST(" + column + " AS text)" : column;
+
+        switch (listFilterWhere.getCriteriaType()) {
+            case Equal:
+                if (empty == true) {
+                    query.append(isEmpty);
+                } else {
+                    query.append(column + " = " + parameter, value);
+                }
+                break;
+            case NotEqual:
+                if (empty == true) {
+                    query.append(isNotEmpty);
+                } else {
+                    query.append("(" + column + " IS NULL OR " + column + " <> " + parameter + ")", value);
+                }
+                break;
+            case GreaterThan:
+                this.compileComparison(query, column, type, ">", value);
+                break;
+            case GreaterThanOrEqual:
+                this.compileComparison(query, column, type, ">=", value);
+                break;
+            case LessThan:
+                this.compileComparison(query, column, type, "<", value);
+                break;
+            case LessThanOrEqual:
+                this.compileComparison(query, column, type, "<=", value);
+                break;
+            case Contains:
+                query.append(text + " ILIKE ? ESCAPE '!'", "%" + this.escapeLike(value) + "%");
+                break;
+            case StartsWith:
+                query.append(text + " ILIKE ? ESCAPE '!'", this.escapeLike(value) + "%");
+                break;
+            case EndsWith:
+                query.append(text + " ILIKE ? ESCAPE '!'", "%" + this.escapeLike(value));
+                break;
+            case IsEmpty:
+                // The value says whether we're looking for empty values or not, with no value meaning we are
+                if (empty == true || Boolean.parseBoolean(value) == true) {
+                    query.append(isEmpty);
+                } else {
+                    query.append(isNotEmpty);
+                }
+                break;
+            default:
+                throw new Exception("The ObjectDataRequest.ListFilter.Where[].CriteriaType is not supported. The criteria type causing the fault is: " + listFilterWhere.getCriteriaType());
+        }
+    }
+
+    private void compileComparison(Query query, String column, String type, String operator, String value) throws Exception {
+        if (value == null ||
+                value.isEmpty() == true) {
+            throw new Exception("The ObjectDataRequest.ListFilter.Where[].ContentValue must be provided when comparing with " + operator + ".");
+        }
+
+        if (type != null) {
+            // Typed columns are compared natively, so numbers, dates and text all compare the way you'd expect
+            query.append(column + " " + operator + " CAST(? AS " + type + ")", value);
+        } else if (NUMBER_PATTERN.matcher(value).matches() == true) {
+            // Numbers are compared as numbers, skipping any stored values that aren't numbers rather than failing the cast
+            query.append("CASE WHEN " + column + " ~ '" + NUMBER_EXPRESSION + "' THEN CAST(" + column + " AS numeric) END " + operator + " ?", new BigDecimal(value));
+        } else {
+            // Everything else (including ISO 8601 dates) is compared as text
+            query.append(column + " " + operator + " ?", value);
+        }
+    }
+
+    private String escapeLike(String value) {
+        if (value == null) {
+            return "";
+        }
+
+        return value.replace("!", "!!").replace("%", "!%").replace("_", "!_");
+    }
+}
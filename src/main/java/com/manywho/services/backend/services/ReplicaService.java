@@ -0,0 +1,226 @@
+package com.manywho.services.backend.services;
+
+import com.manywho.sdk.entities.security.AuthenticatedWho;
+import com.manywho.services.backend.configuration.Configuration;
+import com.manywho.services.backend.configuration.Settings;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks which of a database's read replicas a load is sent to, keeping track of which replicas are up and which
+ * tenants have written recently enough that they must read from the primary. This service must be bound as a
+ * singleton, as it holds the health of every replica.
+ */
+public class ReplicaService {
+    public static final String STRATEGY_ROUND_ROBIN = "round-robin";
+    public static final String STRATEGY_LEAST_LOADED = "least-loaded";
+
+    private final Map<ReplicaKey, Replica> replicas = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastWrites = new ConcurrentHashMap<>();
+    private final AtomicLong counter = new AtomicLong();
+    private final ScheduledExecutorService checker;
+
+    @Inject
+    private ConnectionPoolService connectionPoolService;
+
+    public ReplicaService() {
+        this.checker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "backend-replica-checker");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+
+        long interval = Settings.getLong(Settings.REPLICA_HEALTH_CHECK_INTERVAL, 10000);
+
+        this.checker.scheduleWithFixedDelay(this::checkReplicas, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrows a connection to one of the configured replicas, or returns null if the load should go to the primary,
+     * because there aren't any replicas, none of them are up, or the tenant has written within the read-your-writes
+     * window. A replica that can't be connected to is marked as down until it next passes a health check.
+     */
+    public Connection getConnection(Configuration configuration, AuthenticatedWho authenticatedWho) throws Exception {
+        List<String> urls = configuration.getReplicaUrls();
+
+        if (urls.isEmpty() == true ||
+                this.hasWrittenRecently(configuration, authenticatedWho) == true) {
+            return null;
+        }
+
+        List<Replica> healthy = new ArrayList<>(urls.size());
+
+        for (String url : urls) {
+            Replica replica = this.replicas.computeIfAbsent(
+                    new ReplicaKey(url, configuration.getUsername(), configuration.getPassword()),
+                    Replica::new
+            );
+
+            replica.lastUsed = System.currentTimeMillis();
+
+            if (replica.healthy == true) {
+                healthy.add(replica);
+            }
+        }
+
+        // Each replica is tried at most once, starting from the one the strategy picks
+        int first = this.choose(healthy);
+
+        for (int i = 0; i < healthy.size(); i++) {
+            Replica replica = healthy.get((first + i) % healthy.size());
+
+            try {
+                return this.connectionPoolService.getConnection(replica.key.url, replica.key.username, replica.key.password);
+            } catch (Exception e) {
+                replica.healthy = false;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Remembers that the tenant has just written to the primary, so its loads go to the primary until the replicas
+     * have had time to catch up.
+     */
+    public void recordWrite(Configuration configuration, AuthenticatedWho authenticatedWho) {
+        if (configuration.getReplicaUrls().isEmpty() == true ||
+                Settings.getLong(Settings.REPLICA_READ_YOUR_WRITES_WINDOW, 0) <= 0) {
+            return;
+        }
+
+        this.lastWrites.put(this.getTenantKey(configuration, authenticatedWho), System.currentTimeMillis());
+    }
+
+    @PreDestroy
+    public void close() {
+        this.checker.shutdownNow();
+    }
+
+    private boolean hasWrittenRecently(Configuration configuration, AuthenticatedWho authenticatedWho) {
+        long window = Settings.getLong(Settings.REPLICA_READ_YOUR_WRITES_WINDOW, 0);
+
+        if (window <= 0) {
+            return false;
+        }
+
+        Long lastWrite = this.lastWrites.get(this.getTenantKey(configuration, authenticatedWho));
+
+        return lastWrite != null && System.currentTimeMillis() - lastWrite < window;
+    }
+
+    private int choose(List<Replica> healthy) {
+        if (healthy.size() <= 1) {
+            return 0;
+        }
+
+        if (STRATEGY_LEAST_LOADED.equalsIgnoreCase(Settings.getString(Settings.REPLICA_STRATEGY, STRATEGY_ROUND_ROBIN)) == true) {
+            int chosen = 0;
+            int lowest = Integer.MAX_VALUE;
+
+            for (int i = 0; i < healthy.size(); i++) {
+                ReplicaKey key = healthy.get(i).key;
+                int load = this.connectionPoolService.getLoad(key.url, key.username, key.password);
+
+                if (load < lowest) {
+                    chosen = i;
+                    lowest = load;
+                }
+            }
+
+            return chosen;
+        }
+
+        return (int) (this.counter.getAndIncrement() % healthy.size());
+    }
+
+    private String getTenantKey(Configuration configuration, AuthenticatedWho authenticatedWho) {
+        return configuration.getUrl() + "|" + authenticatedWho.getManyWhoTenantId();
+    }
+
+    private void checkReplicas() {
+        long now = System.currentTimeMillis();
+        long evictionTimeout = Settings.getLong(Settings.POOL_EVICTION_TIMEOUT, TimeUnit.MINUTES.toMillis(30));
+        int validationTimeout = (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(Settings.getLong(Settings.POOL_VALIDATION_TIMEOUT, 1000)));
+
+        for (Map.Entry<ReplicaKey, Replica> entry : this.replicas.entrySet()) {
+            Replica replica = entry.getValue();
+
+            // Replicas that haven't been used in a while are forgotten, so checking them doesn't keep their pools open
+            if (now - replica.lastUsed > evictionTimeout) {
+                this.replicas.remove(entry.getKey(), replica);
+
+                continue;
+            }
+
+            ReplicaKey key = replica.key;
+
+            try (Connection connection = this.connectionPoolService.getConnection(key.url, key.username, key.password)) {
+                replica.healthy = connection.isValid(validationTimeout);
+            } catch (Exception e) {
+                replica.healthy = false;
+            }
+        }
+
+        // Writes older than the window don't affect anything any more
+        long window = Settings.getLong(Settings.REPLICA_READ_YOUR_WRITES_WINDOW, 0);
+
+        this.lastWrites.entrySet().removeIf(entry -> now - entry.getValue() >= window);
+    }
+
+    private static class Replica {
+        private final ReplicaKey key;
+        private volatile boolean healthy = true;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private Replica(ReplicaKey key) {
+            this.key = key;
+        }
+    }
+
+    private static class ReplicaKey {
+        private final String url;
+        private final String username;
+        private final String password;
+
+        private ReplicaKey(String url, String username, String password) {
+            this.url = url;
+            this.username = username;
+            this.password = password;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+
+            if (other == null || getClass() != other.getClass()) {
+                return false;
+            }
+
+            ReplicaKey replicaKey = (ReplicaKey) other;
+
+            return Objects.equals(this.url, replicaKey.url) &&
+                    Objects.equals(this.username, replicaKey.username) &&
+                    Objects.equals(this.password, replicaKey.password);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.url, this.username, this.password);
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package com.manywho.services.backend.services;
+
+import com.manywho.services.backend.configuration.Configuration;
+import com.manywho.services.backend.configuration.Settings;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates and migrates the typetables schema the first time the service talks to a database, and (if enabled) adds
+ * expression indexes for the properties that are filtered on most often. This service must be bound as a singleton,
+ * as it remembers which databases have already been checked.
+ */
+public class SchemaService {
+    // Used to stop several instances of the service migrating the same database at the same time
+    private static final long MIGRATION_LOCK = 7210398112674371L;
+
+    private final Set<String> migratedDatabases = ConcurrentHashMap.newKeySet();
+    private final Set<String> indexedProperties = ConcurrentHashMap.newKeySet();
+    private final Set<String> convertedTenants = ConcurrentHashMap.newKeySet();
+    private final Map<String, AtomicLong> propertyUses = new ConcurrentHashMap<>();
+    private final ExecutorService indexer;
+
+    // Each migration brings the schema up to the version matching its position in the list, and they are only ever
+    // appended to
+    private final List<Migration> migrations = Arrays.asList(
+            this::createTypeTables,
+            this::addParentProperty,
+            this::addBinaryData,
+            this::addSearch,
+            this::addVersion
+    );
+
+    @Inject
+    private ConnectionPoolService connectionPoolService;
+
+    @Inject
+    private BindingService bindingService;
+
+    public SchemaService() {
+        this.indexer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "backend-schema-indexer");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+    }
+
+    public void ensureSchema(Configuration configuration, Connection connection) throws Exception {
+        if (Settings.getBoolean(Settings.SCHEMA_MANAGE, true) == false ||
+                this.migratedDatabases.contains(configuration.getUrl()) == true) {
+            return;
+        }
+
+        boolean autoCommit = connection.getAutoCommit();
+
+        try {
+            connection.setAutoCommit(false);
+
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("SELECT pg_advisory_xact_lock(" + MIGRATION_LOCK + ")");
+                statement.execute("CREATE TABLE IF NOT EXISTS backendschema (version integer NOT NULL)");
+            }
+
+            int version = this.getSchemaVersion(connection);
+
+            for (int i = version; i < this.migrations.size(); i++) {
+                this.migrations.get(i).migrate(connection);
+            }
+
+            if (version < this.migrations.size()) {
+                this.setSchemaVersion(connection, this.migrations.size());
+            }
+
+            connection.commit();
+        } catch (Exception e) {
+            connection.rollback();
+
+            throw new Exception("The typetables schema could not be created or migrated: " + e.getMessage(), e);
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+
+        this.migratedDatabases.add(configuration.getUrl());
+    }
+
+    /**
+     * Checks if the database has already been migrated, and (if a codec is given) the tenant's rows have already been
+     * converted to it, so nothing needs to be written before the tenant's objects can be read.
+     */
+    public boolean isReady(Configuration configuration, String tenantId, StorageCodec codec) {
+        if (Settings.getBoolean(Settings.SCHEMA_MANAGE, true) == true &&
+                this.migratedDatabases.contains(configuration.getUrl()) == false) {
+            return false;
+        }
+
+        return codec == null || this.convertedTenants.contains(configuration.getUrl() + "|" + tenantId + "|" + codec.getColumn());
+    }
+
+    /**
+     * Makes sure all of the tenant's rows are stored with the given codec, rewriting any that were stored with the
+     * other one (e.g. because the tenant's Storage Format was changed). This is done in batches, each in their own
+     * transaction, the first time the tenant is seen with the codec. Every load and save goes through this first, so
+     * nothing ever reads a row in the wrong format.
+     */
+    public void ensureStorageFormat(Configuration configuration, String tenantId, Connection connection, StorageCodec codec, StorageCodec otherCodec) throws Exception {
+        String key = configuration.getUrl() + "|" + tenantId + "|" + codec.getColumn();
+
+        if (this.convertedTenants.contains(key) == true) {
+            return;
+        }
+
+        int batchSize = Settings.getInteger(Settings.SAVE_BATCH_SIZE, 100);
+        boolean autoCommit = connection.getAutoCommit();
+
+        try {
+            connection.setAutoCommit(false);
+
+            int converted;
+
+            do {
+                converted = 0;
+
+                try (PreparedStatement selectStatement = connection.prepareStatement(
+                        "SELECT id, " + otherCodec.getColumn() + " FROM typetables WHERE tenantid = ? AND " + otherCodec.getStoredCondition() + " LIMIT ? FOR UPDATE"
+                );
+                     PreparedStatement updateStatement = connection.prepareStatement(codec.getConversion())) {
+                    selectStatement.setString(1, tenantId);
+                    selectStatement.setInt(2, batchSize);
+
+                    try (ResultSet resultSet = selectStatement.executeQuery()) {
+                        while (resultSet.next()) {
+                            codec.setValue(updateStatement, 1, otherCodec.readJson(resultSet, 2));
+                            updateStatement.setString(2, resultSet.getString(1));
+                            updateStatement.addBatch();
+
+                            converted++;
+                        }
+                    }
+
+                    if (converted > 0) {
+                        updateStatement.executeBatch();
+                    }
+                }
+
+                connection.commit();
+            } while (converted == batchSize);
+        } catch (Exception e) {
+            connection.rollback();
+
+            throw new Exception("The objects could not be converted to the " + codec.getColumn() + " storage format: " + e.getMessage(), e);
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+
+        this.convertedTenants.add(key);
+        this.convertedTenants.remove(configuration.getUrl() + "|" + tenantId + "|" + otherCodec.getColumn());
+    }
+
+    /**
+     * Counts how often a property of a type is filtered on, and once it's been filtered on enough times, creates an
+     * expression index for it in the background. The names are written into the DDL of the index, so anything that
+     * isn't a safe name is never counted, however it got here.
+     */
+    public void recordPropertyUse(Configuration configuration, String typeName, String propertyName) {
+        if (Settings.getBoolean(Settings.SCHEMA_INDEX_HOT_PROPERTIES, false) == false) {
+            return;
+        }
+
+        try {
+            this.bindingService.validateName(typeName);
+            this.bindingService.validateName(propertyName);
+        } catch (Exception e) {
+            return;
+        }
+
+        String key = configuration.getUrl() + "|" + typeName + "|" + propertyName;
+
+        if (this.indexedProperties.contains(key) == true) {
+            return;
+        }
+
+        long uses = this.propertyUses.computeIfAbsent(key, k -> new AtomicLong()).incrementAndGet();
+
+        if (uses >= Settings.getLong(Settings.SCHEMA_HOT_PROPERTY_THRESHOLD, 1000) &&
+                this.indexedProperties.add(key) == true) {
+            this.propertyUses.remove(key);
+            this.indexer.submit(() -> this.createPropertyIndex(configuration, typeName, propertyName));
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        this.indexer.shutdownNow();
+    }
+
+    private void createPropertyIndex(Configuration configuration, String typeName, String propertyName) {
+        String indexName = this.getIndexName("typetables_" + typeName + "_" + propertyName + "_idx");
+
+        // The index is built concurrently so it doesn't block saves, which means it can't be inside a transaction. The
+        // tenant and name lead the index (rather than it being a partial index on the name) so it's still usable by the
+        // generic plans of prepared statements, where they're bound as parameters
+        try (Connection connection = this.connectionPoolService.getConnection(configuration);
+             Statement statement = connection.createStatement()) {
+            connection.setAutoCommit(true);
+
+            // A concurrent build that failed part way leaves an invalid index behind, which IF NOT EXISTS would skip
+            if (this.isInvalidIndex(connection, indexName) == true) {
+                statement.execute("DROP INDEX CONCURRENTLY IF EXISTS " + indexName);
+            }
+
+            statement.execute(
+                    "CREATE INDEX CONCURRENTLY IF NOT EXISTS " + indexName + " ON typetables " +
+                    "(tenantid, name, (data->>'" + propertyName + "'))"
+            );
+        } catch (Exception e) {
+            // We'll try again once the property has been used enough times again
+            this.indexedProperties.remove(configuration.getUrl() + "|" + typeName + "|" + propertyName);
+        }
+    }
+
+    private void createTypeTables(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(
+                    "CREATE TABLE IF NOT EXISTS typetables (" +
+                    "id varchar(36) PRIMARY KEY, " +
+                    "parentid varchar(36), " +
+                    "name varchar(255) NOT NULL, " +
+                    "tenantid varchar(36) NOT NULL, " +
+                    "data jsonb NOT NULL DEFAULT '{}')"
+            );
+
+            // Databases created before the schema was managed hold the json as text, and may not have a key on the id
+            if ("jsonb".equals(this.getColumnType(connection, "typetables", "data")) == false) {
+                statement.execute("ALTER TABLE typetables ALTER COLUMN data TYPE jsonb USING CAST(data AS jsonb)");
+            }
+
+            if (this.hasUniqueId(connection) == false) {
+                statement.execute("ALTER TABLE typetables ADD PRIMARY KEY (id)");
+            }
+
+            statement.execute("CREATE INDEX IF NOT EXISTS typetables_tenantid_name_idx ON typetables (tenantid, name)");
+            statement.execute("CREATE INDEX IF NOT EXISTS typetables_parentid_idx ON typetables (parentid)");
+        }
+    }
+
+    private void addParentProperty(Connection connection) throws SQLException {
+        // Child rows remember which property of their parent holds them, so they can be put back in the right place
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("ALTER TABLE typetables ADD COLUMN IF NOT EXISTS parentproperty varchar(255)");
+        }
+    }
+
+    private void addBinaryData(Connection connection) throws SQLException {
+        // Holds the properties when they're stored in a binary format rather than as jsonb, with an index to quickly find
+        // the rows of a tenant that are stored this way
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("ALTER TABLE typetables ADD COLUMN IF NOT EXISTS databinary bytea");
+            statement.execute("CREATE INDEX IF NOT EXISTS typetables_databinary_idx ON typetables (tenantid) WHERE databinary IS NOT NULL");
+        }
+    }
+
+    private void addSearch(Connection connection) throws SQLException {
+        // Every value in the properties of a row is indexed as words that it can be searched by. The vector is kept up
+        // to date by a trigger, rather than being a generated column, so it works on the older versions of Postgres we
+        // support. Nested objects and lists are indexed by their json, which the parser breaks up into words anyway
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("ALTER TABLE typetables ADD COLUMN IF NOT EXISTS datasearch tsvector");
+
+            statement.execute(
+                    "CREATE OR REPLACE FUNCTION typetables_search(data jsonb) RETURNS tsvector AS $$ " +
+                    "SELECT to_tsvector('" + QueryService.SEARCH_CONFIGURATION + "', COALESCE((SELECT string_agg(value, ' ') FROM jsonb_each_text(data)), '')) " +
+                    "$$ LANGUAGE sql IMMUTABLE"
+            );
+
+            statement.execute(
+                    "CREATE OR REPLACE FUNCTION typetables_search_trigger() RETURNS trigger AS $$ " +
+                    "BEGIN NEW.datasearch := typetables_search(NEW.data); RETURN NEW; END " +
+                    "$$ LANGUAGE plpgsql"
+            );
+
+            statement.execute("DROP TRIGGER IF EXISTS typetables_search_trigger ON typetables");
+            statement.execute(
+                    "CREATE TRIGGER typetables_search_trigger BEFORE INSERT OR UPDATE OF data ON typetables " +
+                    "FOR EACH ROW EXECUTE PROCEDURE typetables_search_trigger()"
+            );
+
+            statement.execute("UPDATE typetables SET datasearch = typetables_search(data) WHERE datasearch IS NULL");
+            statement.execute("CREATE INDEX IF NOT EXISTS typetables_datasearch_idx ON typetables USING gin (datasearch)");
+        }
+    }
+
+    private void addVersion(Connection connection) throws SQLException {
+        // Every write to a row moves it on a version, so a save can check the row hasn't changed since it was loaded
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("ALTER TABLE typetables ADD COLUMN IF NOT EXISTS version bigint NOT NULL DEFAULT 1");
+            statement.execute("ALTER TABLE typetables ADD COLUMN IF NOT EXISTS updatedat timestamptz NOT NULL DEFAULT now()");
+        }
+    }
+
+    private int getSchemaVersion(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT max(version) FROM backendschema")) {
+            if (resultSet.next()) {
+                return resultSet.getInt(1);
+            }
+
+            return 0;
+        }
+    }
+
+    private void setSchemaVersion(Connection connection, int version) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("DELETE FROM backendschema");
+        }
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement("INSERT INTO backendschema (version) VALUES (?)")) {
+            preparedStatement.setInt(1, version);
+            preparedStatement.executeUpdate();
+        }
+    }
+
+    private String getColumnType(Connection connection, String table, String column) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "SELECT data_type FROM information_schema.columns WHERE table_schema = current_schema() AND table_name = ? AND column_name = ?"
+        )) {
+            preparedStatement.setString(1, table);
+            preparedStatement.setString(2, column);
+
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (resultSet.next()) {
+                    return resultSet.getString(1);
+                }
+
+                return null;
+            }
+        }
+    }
+
+    private boolean hasUniqueId(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(
+                     "SELECT 1 FROM pg_index i " +
+                     "JOIN pg_attribute a ON a.attrelid = i.indrelid AND a.attnum = ANY(i.indkey) " +
+                     "WHERE i.indrelid = CAST('typetables' AS regclass) AND i.indisunique AND i.indnatts = 1 AND a.attname = 'id'"
+             )) {
+            return resultSet.next();
+        }
+    }
+
+    private boolean isInvalidIndex(Connection connection, String indexName) throws SQLException {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "SELECT 1 FROM pg_index WHERE indexrelid = to_regclass(?) AND indisvalid = false"
+        )) {
+            preparedStatement.setString(1, indexName);
+
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next();
+            }
+        }
+    }
+
+    private String getIndexName(String name) {
+        // Postgres truncates identifiers at 63 characters, so long names are shortened with a hash to keep them unique
+        if (name.length() <= 63) {
+            return name;
+        }
+
+        return name.substring(0, 54) + "_" + Integer.toHexString(name.hashCode());
+    }
+
+    private interface Migration {
+        void migrate(Connection connection) throws SQLException;
+    }
+}
@@ -0,0 +1,63 @@
+package com.manywho.services.backend.services;
+
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * How the properties of an object are encoded in a row of typetables. Everything above this works with the json text
+ * of the properties, and rows are read back through a streaming parser so they never need to be turned into text.
+ */
+public interface StorageCodec {
+    /**
+     * The column of typetables the encoded properties are held in.
+     */
+    String getColumn();
+
+    /**
+     * The SQL placeholder for an encoded value, including any cast it needs.
+     */
+    String getParameter();
+
+    /**
+     * The SQL that merges the new properties into the existing ones on an update, or null if the database can't look
+     * inside the encoding, in which case the existing properties are merged before the row is written.
+     */
+    String getMerge();
+
+    /**
+     * The SQL that sets the column from the parameter in an UPDATE, merging the new properties into the existing ones
+     * in the same way as the merge (or replacing them if the properties have already been merged).
+     */
+    String getUpdate();
+
+    /**
+     * Whether the database can look inside the encoding, to filter and order by the properties.
+     */
+    boolean isQueryable();
+
+    /**
+     * The SQL condition matching the rows that are already in this encoding.
+     */
+    String getStoredCondition();
+
+    /**
+     * The SQL that rewrites a row (given the encoded value and the id) into this encoding, if it isn't already.
+     */
+    String getConversion();
+
+    void setValue(PreparedStatement preparedStatement, int index, String json) throws SQLException, IOException;
+
+    /**
+     * Creates a parser over the encoded value in the given column, or returns null if it's null.
+     */
+    JsonParser createParser(ResultSet resultSet, int column) throws SQLException, IOException;
+
+    /**
+     * Reads the encoded value in the given column back as json text, or returns null if it's null.
+     */
+    String readJson(ResultSet resultSet, int column) throws SQLException, IOException;
+}
@@ -0,0 +1,566 @@
+package com.manywho.services.backend.services;
+
+import com.manywho.sdk.entities.run.elements.type.*;
+import com.manywho.sdk.entities.run.elements.type.Object;
+import com.manywho.sdk.entities.security.AuthenticatedWho;
+import com.manywho.sdk.enums.ContentType;
+import com.manywho.services.backend.configuration.Settings;
+import com.manywho.services.backend.entities.Query;
+
+import javax.inject.Inject;
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores each type in its own table, with a typed column per property, rather than as json in typetables. The tables
+ * and columns are given the names BindingService binds the types and properties to, so they're the same names the
+ * objects arrive with. The tables are kept in their own schema, so a type can never name a table that the service (or
+ * anything else sharing the schema) uses. The tables and columns are created as objects with new properties are saved.
+ * This service must be bound as a singleton, as it caches the columns of each table.
+ */
+public class TableStorageService {
+    private static final Set<String> SYSTEM_COLUMNS = new HashSet<>(Arrays.asList("id", "parentid", "tenantid"));
+    private static final String TABLE_SCHEMA = "backend_tables";
+
+    // The columns of each table we've seen, keyed by the database url and table name, with each column mapped to the
+    // type its values are cast to
+    private final Map<String, Map<String, String>> tableColumns = new ConcurrentHashMap<>();
+
+    @Inject
+    private BindingService bindingService;
+
+    @Inject
+    private QueryService queryService;
+
+    public ObjectCollection executeObjectSave(AuthenticatedWho authenticatedWho, Connection connection, String parentId, ObjectCollection objects) throws Exception {
+        if (authenticatedWho == null) {
+            throw new Exception(("The AuthenticatedWho object cannot be null."));
+        }
+
+        if (connection == null) {
+            throw new Exception("The Connection object cannot be null.");
+        }
+
+        if (authenticatedWho.getManyWhoTenantId() == null ||
+                authenticatedWho.getManyWhoTenantId().isEmpty() == true) {
+            throw new Exception("The AuthenticatedWho.ManyWhoTenantId cannot be null or blank.");
+        }
+
+        ObjectCollection objectCollection = new ObjectCollection();
+
+        if (objects == null ||
+                objects.size() == 0) {
+            return objectCollection;
+        }
+
+        // Flatten the hierarchy into the rows for each table first, so they can be written in batches
+        Map<String, List<Object>> tableObjects = new LinkedHashMap<>();
+        Map<String, String> parentIds = new HashMap<>();
+
+        for (Object object : objects) {
+            this.flattenObject(object, parentId, tableObjects, parentIds);
+
+            objectCollection.add(object);
+        }
+
+        boolean autoCommit = connection.getAutoCommit();
+
+        try {
+            connection.setAutoCommit(false);
+
+            for (Map.Entry<String, List<Object>> entry : tableObjects.entrySet()) {
+                this.saveTable(authenticatedWho, connection, entry.getKey(), entry.getValue(), parentIds);
+            }
+
+            connection.commit();
+        } catch (BatchUpdateException e) {
+            connection.rollback();
+
+            // The driver puts the actual reason the batch failed in the next exception
+            if (e.getNextException() != null) {
+                throw e.getNextException();
+            }
+
+            throw e;
+        } catch (Exception e) {
+            connection.rollback();
+
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+
+        return objectCollection;
+    }
+
+    /**
+     * Deletes the given objects from the tables for their types, all in one transaction. Children can be stored in any
+     * other table, so deletes can't be cascaded in this storage mode.
+     */
+    public List<String> executeObjectDelete(AuthenticatedWho authenticatedWho, Connection connection, ObjectCollection objects) throws Exception {
+        if (authenticatedWho == null) {
+            throw new Exception(("The AuthenticatedWho object cannot be null."));
+        }
+
+        if (connection == null) {
+            throw new Exception("The Connection object cannot be null.");
+        }
+
+        if (authenticatedWho.getManyWhoTenantId() == null ||
+                authenticatedWho.getManyWhoTenantId().isEmpty() == true) {
+            throw new Exception("The AuthenticatedWho.ManyWhoTenantId cannot be null or blank.");
+        }
+
+        List<String> deletedIds = new ArrayList<>();
+
+        if (objects == null ||
+                objects.size() == 0) {
+            return deletedIds;
+        }
+
+        Map<String, List<String>> tableIds = new LinkedHashMap<>();
+
+        for (Object object : objects) {
+            if (object.getExternalId() == null ||
+                    object.getExternalId().isEmpty() == true) {
+                throw new Exception("The ExternalId of every object to be deleted must be provided.");
+            }
+
+            this.bindingService.validateUUID(object.getExternalId());
+
+            tableIds.computeIfAbsent(this.getTableName(object.getDeveloperName()), t -> new ArrayList<>()).add(object.getExternalId());
+        }
+
+        boolean autoCommit = connection.getAutoCommit();
+
+        try {
+            connection.setAutoCommit(false);
+
+            for (Map.Entry<String, List<String>> entry : tableIds.entrySet()) {
+                // The table doesn't exist yet, so there's nothing of this type to delete
+                if (this.getColumns(connection, entry.getKey(), false).isEmpty() == true) {
+                    continue;
+                }
+
+                try (PreparedStatement preparedStatement = connection.prepareStatement(
+                        "DELETE FROM " + this.getQualifiedName(entry.getKey()) + " WHERE tenantid = ? AND id = ANY(?) RETURNING id"
+                )) {
+                    preparedStatement.setString(1, authenticatedWho.getManyWhoTenantId());
+                    preparedStatement.setArray(2, connection.createArrayOf("varchar", entry.getValue().toArray()));
+
+                    try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                        while (resultSet.next()) {
+                            deletedIds.add(resultSet.getString(1));
+                        }
+                    }
+                }
+            }
+
+            connection.commit();
+        } catch (Exception e) {
+            connection.rollback();
+
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+
+        return deletedIds;
+    }
+
+    public ObjectCollection executeObjectLoad(AuthenticatedWho authenticatedWho, Connection connection, ObjectDataRequest objectDataRequest) throws Exception {
+        if (authenticatedWho == null) {
+            throw new Exception(("The AuthenticatedWho object cannot be null."));
+        }
+
+        if (connection == null) {
+            throw new Exception("The Connection object cannot be null.");
+        }
+
+        if (objectDataRequest == null) {
+            throw new Exception("The ObjectDataRequest object cannot be null.");
+        }
+
+        if (objectDataRequest.getObjectDataType() == null ||
+                objectDataRequest.getObjectDataType().getDeveloperName() == null ||
+                objectDataRequest.getObjectDataType().getDeveloperName().isEmpty() == true) {
+            throw new Exception("The ObjectDataRequest.ObjectDataType.DeveloperName must be provided. This property is used to determine the type of data to be loaded.");
+        }
+
+        if (authenticatedWho.getManyWhoTenantId() == null ||
+                authenticatedWho.getManyWhoTenantId().isEmpty() == true) {
+            throw new Exception("The AuthenticatedWho.ManyWhoTenantId cannot be null or blank.");
+        }
+
+        String table = this.getTableName(objectDataRequest.getObjectDataType().getDeveloperName());
+        ObjectCollection objectCollection = new ObjectCollection();
+        Map<String, String> columns = this.getColumns(connection, table, false);
+
+        // The table doesn't exist yet, so nothing of this type has been saved
+        if (columns.isEmpty() == true) {
+            return objectCollection;
+        }
+
+        ColumnResolver columnResolver = new ColumnResolver() {
+            @Override
+            public String getExpression(String name) throws Exception {
+                String column = bindingService.getColumnName(name);
+
+                if (columns.containsKey(column) == false) {
+                    throw new Exception("The property " + name + " does not exist on the " + table + " table.");
+                }
+
+                return "\"" + column + "\"";
+            }
+
+            @Override
+            public String getType(String name) throws Exception {
+                return columns.get(bindingService.getColumnName(name));
+            }
+
+            @Override
+            public String getSearchExpression() {
+                return null;
+            }
+        };
+
+        // Reuse the SQL of any earlier query with the same shape
+        String shape = this.queryService.getShape("table:" + table, objectDataRequest.getListFilter(), columnResolver);
+
+        Query query = this.queryService.createQuery(shape);
+        query.append("SELECT * FROM " + this.getQualifiedName(table) + " ");
+        query.append("WHERE tenantid = ? ", authenticatedWho.getManyWhoTenantId());
+
+        ListFilter listFilter = objectDataRequest.getListFilter();
+
+        if (listFilter != null) {
+            if (listFilter.getSearch() != null &&
+                    listFilter.getSearch().isEmpty() == false) {
+                throw new Exception("The ObjectDataRequest.ListFilter.Search property is not supported when the Storage Mode is table.");
+            }
+
+            if (listFilter.getId() != null &&
+                    listFilter.getId().isEmpty() == false) {
+                query.append("AND id = ? ", listFilter.getId());
+            } else {
+                this.queryService.compileListFilter(query, listFilter, columnResolver);
+            }
+        }
+
+        this.queryService.cacheQuery(shape, query);
+
+        boolean autoCommit = connection.getAutoCommit();
+        PreparedStatement preparedStatement = null;
+        ResultSet resultSet = null;
+
+        try {
+            // Stream the rows through a cursor, in the same way as loads from typetables
+            connection.setAutoCommit(false);
+
+            preparedStatement = connection.prepareStatement(query.getSql(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            preparedStatement.setFetchSize(Settings.getInteger(Settings.LOAD_FETCH_SIZE, 500));
+
+            for (int i = 0; i < query.getParameters().size(); i++) {
+                preparedStatement.setObject(i + 1, query.getParameters().get(i));
+            }
+
+            resultSet = preparedStatement.executeQuery();
+
+            ResultSetMetaData metaData = resultSet.getMetaData();
+
+            while (resultSet.next()) {
+                Object object = new Object();
+                object.setDeveloperName(objectDataRequest.getObjectDataType().getDeveloperName());
+                object.setProperties(new PropertyCollection());
+
+                for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                    String column = metaData.getColumnName(i);
+
+                    if (column.equals("id") == true) {
+                        object.setExternalId(resultSet.getString(i));
+                    } else if (SYSTEM_COLUMNS.contains(column) == false) {
+                        object.getProperties().add(new Property(column, this.getContentValue(resultSet, i)));
+                    }
+                }
+
+                objectCollection.add(object);
+            }
+
+            connection.commit();
+        } catch (Exception e) {
+            connection.rollback();
+
+            throw e;
+        } finally {
+            try {
+                if (resultSet != null) {
+                    resultSet.close();
+                }
+
+                if (preparedStatement != null) {
+                    preparedStatement.close();
+                }
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+
+        return objectCollection;
+    }
+
+    private void flattenObject(Object object, String parentId, Map<String, List<Object>> tableObjects, Map<String, String> parentIds) throws Exception {
+        String table = this.getTableName(object.getDeveloperName());
+
+        if (object.getExternalId() != null &&
+                object.getExternalId().isEmpty() == false) {
+            this.bindingService.validateUUID(object.getExternalId());
+        } else {
+            // Assign an id for this object as it's new
+            object.setExternalId(UUID.randomUUID().toString());
+        }
+
+        for (Property property : object.getProperties()) {
+            this.bindingService.validateName(property.getDeveloperName());
+
+            if (SYSTEM_COLUMNS.contains(this.bindingService.getColumnName(property.getDeveloperName())) == true) {
+                throw new Exception("The property " + property.getDeveloperName() + " cannot be stored in the table storage mode as the name is used by the " + table + " table itself.");
+            }
+
+            // Child objects are stored in the table for their own type, pointing back at this object
+            if (property.getObjectData() != null) {
+                for (Object child : property.getObjectData()) {
+                    this.flattenObject(child, object.getExternalId(), tableObjects, parentIds);
+                }
+            }
+        }
+
+        parentIds.put(object.getExternalId(), parentId);
+        tableObjects.computeIfAbsent(table, t -> new ArrayList<>()).add(object);
+    }
+
+    private void saveTable(AuthenticatedWho authenticatedWho, Connection connection, String table, List<Object> objects, Map<String, String> parentIds) throws Exception {
+        // Objects with the same properties share a statement, as a partial save only writes the properties it was given
+        Map<List<String>, List<Object>> shapes = new LinkedHashMap<>();
+        Map<String, ContentType> contentTypes = new HashMap<>();
+
+        for (Object object : objects) {
+            List<String> shape = new ArrayList<>();
+
+            for (Property property : object.getProperties()) {
+                if (this.isColumn(property) == true) {
+                    String column = this.bindingService.getColumnName(property.getDeveloperName());
+
+                    shape.add(column);
+                    contentTypes.putIfAbsent(column, property.getContentType());
+                }
+            }
+
+            shapes.computeIfAbsent(shape, s -> new ArrayList<>()).add(object);
+        }
+
+        Map<String, String> columns = this.ensureColumns(connection, table, contentTypes);
+        int batchSize = Settings.getInteger(Settings.SAVE_BATCH_SIZE, 100);
+        List<String> conflicts = new ArrayList<>();
+
+        for (Map.Entry<List<String>, List<Object>> shape : shapes.entrySet()) {
+            StringBuilder names = new StringBuilder("id, parentid, tenantid");
+            StringBuilder values = new StringBuilder("?, ?, ?");
+            StringBuilder updates = new StringBuilder("parentid = EXCLUDED.parentid");
+
+            for (String column : shape.getKey()) {
+                names.append(", \"").append(column).append("\"");
+
+                // Blank values can't be cast to the typed columns, so they're stored as nulls
+                if (columns.get(column).equals("text") == true) {
+                    values.append(", ?");
+                } else {
+                    values.append(", CAST(NULLIF(?, '') AS ").append(columns.get(column)).append(")");
+                }
+
+                updates.append(", \"").append(column).append("\" = EXCLUDED.\"").append(column).append("\"");
+            }
+
+            try (PreparedStatement preparedStatement = connection.prepareStatement(
+                    "INSERT INTO " + this.getQualifiedName(table) + " AS existing (" + names + ") VALUES (" + values + ") " +
+                    "ON CONFLICT (id) DO UPDATE SET " + updates + " " +
+                    "WHERE existing.tenantid = EXCLUDED.tenantid"
+            )) {
+                List<Object> pendingObjects = new ArrayList<>(batchSize);
+
+                for (Object object : shape.getValue()) {
+                    preparedStatement.setString(1, object.getExternalId());
+                    preparedStatement.setString(2, parentIds.get(object.getExternalId()));
+                    preparedStatement.setString(3, authenticatedWho.getManyWhoTenantId());
+
+                    int index = 4;
+
+                    for (Property property : object.getProperties()) {
+                        if (this.isColumn(property) == true) {
+                            preparedStatement.setString(index++, property.getContentValue());
+                        }
+                    }
+
+                    preparedStatement.addBatch();
+
+                    pendingObjects.add(object);
+
+                    if (pendingObjects.size() == batchSize) {
+                        this.collectConflicts(preparedStatement.executeBatch(), pendingObjects, conflicts);
+                        pendingObjects.clear();
+                    }
+                }
+
+                if (pendingObjects.size() > 0) {
+                    this.collectConflicts(preparedStatement.executeBatch(), pendingObjects, conflicts);
+                }
+            }
+        }
+
+        // A row is only skipped by the upsert if its id is already used by a row of another tenant
+        if (conflicts.size() > 0) {
+            throw new Exception("The objects could not be saved, as their identifiers are already used by another tenant. The objects causing the fault are: " + String.join(", ", conflicts));
+        }
+    }
+
+    /**
+     * Child objects are stored in their own tables, and the version property declared in every bound type isn't used by
+     * the table storage mode, so neither is given a column.
+     */
+    private boolean isColumn(Property property) {
+        return property.getObjectData() == null &&
+                MapperService.VERSION_PROPERTY.equals(property.getDeveloperName()) == false;
+    }
+
+    private void collectConflicts(int[] counts, List<Object> objects, List<String> conflicts) {
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] == 0) {
+                conflicts.add(objects.get(i).getExternalId());
+            }
+        }
+    }
+
+    private Map<String, String> ensureColumns(Connection connection, String table, Map<String, ContentType> contentTypes) throws Exception {
+        Map<String, String> columns = this.getColumns(connection, table, false);
+
+        if (columns.keySet().containsAll(contentTypes.keySet()) == true) {
+            return columns;
+        }
+
+        // Something has changed that we haven't seen yet, so we check the database before changing anything
+        columns = this.getColumns(connection, table, true);
+
+        try (Statement statement = connection.createStatement()) {
+            if (columns.isEmpty() == true) {
+                // The indexes are created in the same schema as their table
+                statement.execute("CREATE SCHEMA IF NOT EXISTS " + TABLE_SCHEMA);
+                statement.execute("CREATE TABLE IF NOT EXISTS " + this.getQualifiedName(table) + " (id varchar(36) PRIMARY KEY, parentid varchar(36), tenantid varchar(36) NOT NULL)");
+                statement.execute("CREATE INDEX IF NOT EXISTS \"" + table + "_tenantid_idx\" ON " + this.getQualifiedName(table) + " (tenantid)");
+                statement.execute("CREATE INDEX IF NOT EXISTS \"" + table + "_parentid_idx\" ON " + this.getQualifiedName(table) + " (parentid)");
+            }
+
+            for (Map.Entry<String, ContentType> contentType : contentTypes.entrySet()) {
+                if (columns.containsKey(contentType.getKey()) == false) {
+                    statement.execute("ALTER TABLE " + this.getQualifiedName(table) + " ADD COLUMN IF NOT EXISTS \"" + contentType.getKey() + "\" " + this.getColumnType(contentType.getValue()));
+                }
+            }
+        }
+
+        return this.getColumns(connection, table, true);
+    }
+
+    private Map<String, String> getColumns(Connection connection, String table, boolean refresh) throws SQLException {
+        String key = connection.getMetaData().getURL() + "|" + table;
+
+        if (refresh == false) {
+            Map<String, String> columns = this.tableColumns.get(key);
+
+            if (columns != null) {
+                return columns;
+            }
+        }
+
+        Map<String, String> columns = new HashMap<>();
+
+        try (PreparedStatement preparedStatement = connection.prepareStatement(
+                "SELECT column_name, data_type FROM information_schema.columns WHERE table_schema = ? AND table_name = ?"
+        )) {
+            preparedStatement.setString(1, TABLE_SCHEMA);
+            preparedStatement.setString(2, table);
+
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    columns.put(resultSet.getString(1), this.getCastType(resultSet.getString(2)));
+                }
+            }
+        }
+
+        // We don't remember tables that don't exist yet, so they're picked up as soon as they're created
+        if (columns.isEmpty() == false) {
+            this.tableColumns.put(key, columns);
+        }
+
+        return columns;
+    }
+
+    private String getTableName(String developerName) throws Exception {
+        if (developerName == null ||
+                developerName.isEmpty() == true) {
+            throw new Exception("The name of the object cannot be null or blank.");
+        }
+
+        return this.bindingService.getTableName(developerName);
+    }
+
+    private String getQualifiedName(String table) {
+        return TABLE_SCHEMA + ".\"" + table + "\"";
+    }
+
+    private String getColumnType(ContentType contentType) {
+        if (contentType == null) {
+            return "text";
+        }
+
+        switch (contentType) {
+            case Number:
+                return "numeric";
+            case DateTime:
+                return "timestamptz";
+            case Boolean:
+                return "boolean";
+            default:
+                return "text";
+        }
+    }
+
+    private String getCastType(String dataType) {
+        switch (dataType) {
+            case "timestamp with time zone":
+                return "timestamptz";
+            case "character varying":
+                return "text";
+            default:
+                return dataType;
+        }
+    }
+
+    private String getContentValue(ResultSet resultSet, int column) throws SQLException {
+        java.lang.Object value = resultSet.getObject(column);
+
+        if (value == null) {
+            return null;
+        }
+
+        // Values are given back to the platform in the same formats it sends them
+        if (value instanceof BigDecimal) {
+            return ((BigDecimal) value).toPlainString();
+        }
+
+        if (value instanceof Timestamp) {
+            return ((Timestamp) value).toInstant().toString();
+        }
+
+        return value.toString();
+    }
+}
@@ -0,0 +1,397 @@
+package com.manywho.services.backend.services;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.manywho.sdk.entities.security.AuthenticatedWho;
+import com.manywho.services.backend.configuration.Configuration;
+import com.manywho.services.backend.configuration.Settings;
+import com.manywho.services.backend.entities.ImportResult;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import javax.inject.Inject;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves a tenant's rows in and out of typetables in bulk, as newline delimited json with one row per line. Rows are
+ * exported exactly as they're stored (including the rows of child objects, which are stored under their own type) so
+ * an export can be imported as it is, into the same database or another one.
+ */
+public class TransferService {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    @Inject
+    private DatabaseService databaseService;
+
+    @Inject
+    private BindingService bindingService;
+
+    @Inject
+    private LoadCacheService loadCacheService;
+
+    @Inject
+    private MetricsService metricsService;
+
+    @Inject
+    private ReplicaService replicaService;
+
+    /**
+     * Writes each of the tenant's rows (or only those of the given type, if one is given) to the output stream as it's
+     * read from a cursor, so the whole export is never held in memory.
+     */
+    public void executeExport(AuthenticatedWho authenticatedWho, Configuration configuration, String typeName, OutputStream outputStream) throws Exception {
+        this.validate(authenticatedWho, configuration);
+
+        if (typeName != null) {
+            this.bindingService.validateName(typeName);
+        }
+
+        String tenantId = authenticatedWho.getManyWhoTenantId();
+        long start = this.metricsService.start();
+        long rows = 0;
+
+        try (Connection connection = this.databaseService.getConnection(configuration)) {
+            StorageCodec codec = this.databaseService.getStorageCodec(authenticatedWho, configuration, connection);
+
+            String sql = "SELECT id, parentid, parentproperty, name, " + codec.getColumn() + " FROM typetables WHERE tenantid = ? ";
+
+            if (typeName != null) {
+                sql += "AND name = ? ";
+            }
+
+            sql += "ORDER BY id";
+
+            // The driver only uses a cursor when it's inside a transaction and has been given a fetch size
+            connection.setAutoCommit(false);
+
+            try (PreparedStatement preparedStatement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                preparedStatement.setFetchSize(Settings.getInteger(Settings.LOAD_FETCH_SIZE, 500));
+                preparedStatement.setString(1, tenantId);
+
+                if (typeName != null) {
+                    preparedStatement.setString(2, typeName);
+                }
+
+                try (ResultSet resultSet = preparedStatement.executeQuery();
+                     JsonGenerator generator = JSON_FACTORY.createGenerator(outputStream)) {
+                    // Each row goes on its own line, rather than being separated by the usual space, and the stream belongs
+                    // to the container so it's left open
+                    generator.setRootValueSeparator(null);
+                    generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+                    while (resultSet.next()) {
+                        generator.writeStartObject();
+                        generator.writeStringField("id", resultSet.getString(1));
+                        generator.writeStringField("parentId", resultSet.getString(2));
+                        generator.writeStringField("parentProperty", resultSet.getString(3));
+                        generator.writeStringField("name", resultSet.getString(4));
+
+                        // The properties are already json, so they're written out as they are
+                        String data = codec.readJson(resultSet, 5);
+
+                        generator.writeFieldName("data");
+                        generator.writeRawValue(data == null ? "{}" : data);
+                        generator.writeEndObject();
+                        generator.writeRaw('\n');
+
+                        rows++;
+                    }
+                }
+            } finally {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        } catch (Exception e) {
+            this.metricsService.recordError(MetricsService.EXPORT, tenantId, typeName);
+
+            throw e;
+        } finally {
+            this.metricsService.recordRows(MetricsService.EXPORT, tenantId, typeName, rows);
+            this.metricsService.recordTime(MetricsService.EXPORT, tenantId, typeName, start);
+        }
+    }
+
+    /**
+     * Reads the rows from the reader, one per line, and copies them into a temporary table with COPY, before writing
+     * them all to typetables in one statement. Rows replace any existing row with the same id, as long as it belongs to
+     * the same tenant, and if the same id appears more than once, the last one wins. Either every row is imported or
+     * none of them are.
+     */
+    public ImportResult executeImport(AuthenticatedWho authenticatedWho, Configuration configuration, BufferedReader reader) throws Exception {
+        this.validate(authenticatedWho, configuration);
+
+        if (reader == null) {
+            throw new Exception("The rows to import cannot be null.");
+        }
+
+        if (configuration.isSmileFormat() == true) {
+            throw new Exception("Rows can only be imported when the Storage Format is jsonb.");
+        }
+
+        String tenantId = authenticatedWho.getManyWhoTenantId();
+        long start = this.metricsService.start();
+        long rowsRead = 0;
+        long rowsWritten = 0;
+        long payloadSize = 0;
+
+        try (Connection connection = this.databaseService.getConnection(configuration)) {
+            // Converts any rows still stored in the other format, so the replaced rows are all in the same one
+            this.databaseService.getStorageCodec(authenticatedWho, configuration, connection);
+
+            connection.setAutoCommit(false);
+
+            try {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute(
+                            "CREATE TEMPORARY TABLE typetables_import (" +
+                            "line bigint, id varchar(36), parentid varchar(36), parentproperty varchar(255), name varchar(255), data text" +
+                            ") ON COMMIT DROP"
+                    );
+                }
+
+                CopyIn copyIn = connection.unwrap(PGConnection.class).getCopyAPI().copyIn(
+                        "COPY typetables_import (line, id, parentid, parentproperty, name, data) FROM STDIN"
+                );
+
+                try {
+                    int bufferSize = Settings.getInteger(Settings.IMPORT_BUFFER_SIZE, 65536);
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream(bufferSize);
+                    StringBuilder copyRow = new StringBuilder();
+                    String line;
+                    long lineNumber = 0;
+
+                    while ((line = reader.readLine()) != null) {
+                        lineNumber++;
+
+                        if (line.trim().isEmpty() == true) {
+                            continue;
+                        }
+
+                        copyRow.setLength(0);
+                        this.appendCopyRow(copyRow, lineNumber, line);
+
+                        byte[] bytes = copyRow.toString().getBytes(StandardCharsets.UTF_8);
+                        buffer.write(bytes, 0, bytes.length);
+
+                        payloadSize += line.length();
+                        rowsRead++;
+
+                        // Rows are sent in chunks, rather than a message for every row, and the chunk is reused
+                        if (buffer.size() >= bufferSize) {
+                            copyIn.writeToCopy(buffer.toByteArray(), 0, buffer.size());
+                            buffer.reset();
+                        }
+                    }
+
+                    if (buffer.size() > 0) {
+                        copyIn.writeToCopy(buffer.toByteArray(), 0, buffer.size());
+                    }
+
+                    copyIn.endCopy();
+                } finally {
+                    if (copyIn.isActive() == true) {
+                        copyIn.cancelCopy();
+                    }
+                }
+
+                try (PreparedStatement preparedStatement = connection.prepareStatement(
+                        "INSERT INTO typetables (id, parentid, parentproperty, name, tenantid, data) " +
+                        "SELECT DISTINCT ON (id) id, parentid, parentproperty, name, ?, CAST(data AS jsonb) FROM typetables_import ORDER BY id, line DESC " +
+                        "ON CONFLICT (id) DO UPDATE SET parentid = EXCLUDED.parentid, parentproperty = EXCLUDED.parentproperty, name = EXCLUDED.name, data = EXCLUDED.data, " +
+                        "version = typetables.version + 1, updatedat = now() " +
+                        "WHERE typetables.tenantid = EXCLUDED.tenantid"
+                )) {
+                    preparedStatement.setString(1, tenantId);
+
+                    rowsWritten = preparedStatement.executeUpdate();
+                }
+
+                // The upsert skips rows whose id is already used by another tenant, which are the only imported rows
+                // that don't now belong to this one
+                List<String> conflicts = new ArrayList<>();
+
+                try (PreparedStatement preparedStatement = connection.prepareStatement(
+                        "SELECT DISTINCT id FROM typetables_import i " +
+                        "WHERE NOT EXISTS (SELECT 1 FROM typetables t WHERE t.id = i.id AND t.tenantid = ?) ORDER BY id LIMIT 10"
+                )) {
+                    preparedStatement.setString(1, tenantId);
+
+                    try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                        while (resultSet.next()) {
+                            conflicts.add(resultSet.getString(1));
+                        }
+                    }
+                }
+
+                if (conflicts.size() > 0) {
+                    throw new Exception("The rows could not be imported, as some of their identifiers are already used by another tenant. The first of the identifiers causing the fault are: " + String.join(", ", conflicts));
+                }
+
+                connection.commit();
+            } catch (Exception e) {
+                connection.rollback();
+
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+
+            // Any type can be in an import, so every cached load for the tenant is dropped
+            this.loadCacheService.invalidateAll(configuration, authenticatedWho);
+            this.replicaService.recordWrite(configuration, authenticatedWho);
+        } catch (Exception e) {
+            this.metricsService.recordError(MetricsService.IMPORT, tenantId, null);
+
+            throw e;
+        } finally {
+            this.metricsService.recordRows(MetricsService.IMPORT, tenantId, null, rowsRead);
+            this.metricsService.recordPayloadSize(MetricsService.IMPORT, tenantId, null, payloadSize);
+            this.metricsService.recordTime(MetricsService.IMPORT, tenantId, null, start);
+        }
+
+        return new ImportResult(rowsRead, rowsWritten);
+    }
+
+    private void validate(AuthenticatedWho authenticatedWho, Configuration configuration) throws Exception {
+        if (authenticatedWho == null) {
+            throw new Exception(("The AuthenticatedWho object cannot be null."));
+        }
+
+        if (configuration == null) {
+            throw new Exception(("The Configuration object cannot be null."));
+        }
+
+        if (authenticatedWho.getManyWhoTenantId() == null ||
+                authenticatedWho.getManyWhoTenantId().isEmpty() == true) {
+            throw new Exception("The AuthenticatedWho.ManyWhoTenantId cannot be null or blank.");
+        }
+
+        if (configuration.isTableStorage() == true) {
+            throw new Exception("Rows can only be imported and exported when the Storage Mode is json.");
+        }
+    }
+
+    /**
+     * Parses a line of the import and appends it as a row in the text format of COPY. This is package private so the
+     * escaping can be tested without a database.
+     */
+    void appendCopyRow(StringBuilder copyRow, long lineNumber, String line) throws Exception {
+        String id = null;
+        String parentId = null;
+        String parentProperty = null;
+        String name = null;
+        String data = null;
+
+        try (JsonParser parser = JSON_FACTORY.createParser(line)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new Exception("The line isn't a json object.");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+
+                switch (field) {
+                    case "id":
+                        id = parser.getValueAsString();
+                        break;
+                    case "parentId":
+                        parentId = parser.getValueAsString();
+                        break;
+                    case "parentProperty":
+                        parentProperty = parser.getValueAsString();
+                        break;
+                    case "name":
+                        name = parser.getValueAsString();
+                        break;
+                    case "data":
+                        if (token != JsonToken.START_OBJECT) {
+                            throw new Exception("The data property must be a json object.");
+                        }
+
+                        // Copied back out as json, which also makes sure it's valid before it gets to the database
+                        StringWriter writer = new StringWriter();
+
+                        try (JsonGenerator generator = JSON_FACTORY.createGenerator(writer)) {
+                            generator.copyCurrentStructure(parser);
+                        }
+
+                        data = writer.toString();
+                        break;
+                    default:
+                        parser.skipChildren();
+                        break;
+                }
+            }
+
+            if (id == null ||
+                    id.isEmpty() == true) {
+                throw new Exception("The id property cannot be null or blank.");
+            }
+
+            // The ids and names end up in SQL and in the ids of the objects, so they're held to the same rules as saves
+            this.bindingService.validateUUID(id);
+            this.bindingService.validateName(name);
+
+            if (parentId != null) {
+                this.bindingService.validateUUID(parentId);
+            }
+
+            if (data == null) {
+                throw new Exception("The data property cannot be null.");
+            }
+        } catch (Exception e) {
+            throw new Exception("Line " + lineNumber + " of the import isn't valid: " + e.getMessage());
+        }
+
+        copyRow.append(lineNumber).append('\t');
+        this.appendCopyValue(copyRow, id).append('\t');
+        this.appendCopyValue(copyRow, parentId).append('\t');
+        this.appendCopyValue(copyRow, parentProperty).append('\t');
+        this.appendCopyValue(copyRow, name).append('\t');
+        this.appendCopyValue(copyRow, data).append('\n');
+    }
+
+    private StringBuilder appendCopyValue(StringBuilder copyRow, String value) {
+        if (value == null) {
+            return copyRow.append("\\N");
+        }
+
+        // Backslashes, and the characters that separate columns and rows, have to be escaped in the text format
+        for (int i = 0; i < value.length(); i++) {
+            char character = value.charAt(i);
+
+            switch (character) {
+                case '\\':
+                    copyRow.append("\\\\");
+                    break;
+                case '\t':
+                    copyRow.append("\\t");
+                    break;
+                case '\n':
+                    copyRow.append("\\n");
+                    break;
+                case '\r':
+                    copyRow.append("\\r");
+                    break;
+                default:
+                    copyRow.append(character);
+                    break;
+            }
+        }
+
+        return copyRow;
+    }
+}
@@ -0,0 +1,113 @@
+package com.manywho.services.backend.services;
+
+import com.manywho.sdk.entities.draw.elements.type.TypeElement;
+import com.manywho.sdk.entities.draw.elements.type.TypeElementProperty;
+import com.manywho.sdk.entities.draw.elements.type.TypeElementPropertyBinding;
+import com.manywho.sdk.entities.draw.elements.type.TypeElementPropertyCollection;
+import com.manywho.sdk.enums.ContentType;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BindingServiceTest {
+    private final BindingService bindingService = new BindingService();
+
+    @Test
+    public void testGenerateBindingDeclaresVersionProperty() throws Exception {
+        TypeElement typeElement = this.bindingService.generateBinding(this.createTypeElement("Order"));
+
+        assertEquals(2, typeElement.getProperties().size());
+        assertEquals(MapperService.VERSION_PROPERTY, typeElement.getProperties().get(1).getDeveloperName());
+        assertEquals(ContentType.String, typeElement.getProperties().get(1).getContentType());
+
+        // The version isn't a field of the row, so only the type's own properties are bound
+        assertEquals(1, typeElement.getBindings().get(0).getPropertyBindings().size());
+
+        TypeElementPropertyBinding nameBinding = typeElement.getBindings().get(0).getPropertyBindings().get(0);
+
+        assertEquals("name", nameBinding.getDatabaseFieldName());
+        assertEquals(ContentType.String.toString(), nameBinding.getDatabaseContentType());
+    }
+
+    @Test
+    public void testGenerateBindingLeavesCallersPropertiesAlone() throws Exception {
+        TypeElement typeElement = this.createTypeElement("Shipment");
+        TypeElementPropertyCollection properties = typeElement.getProperties();
+
+        TypeElement boundTypeElement = this.bindingService.generateBinding(typeElement);
+
+        assertEquals(1, properties.size());
+        assertEquals(2, boundTypeElement.getProperties().size());
+
+        // Sending the type back with the version gives the same binding, without a binding for the version
+        TypeElement typeElementWithVersion = this.createTypeElement("Shipment");
+        typeElementWithVersion.getProperties().add(boundTypeElement.getProperties().get(1));
+
+        TypeElement reboundTypeElement = this.bindingService.generateBinding(typeElementWithVersion);
+
+        assertSame(boundTypeElement.getBindings().get(0), reboundTypeElement.getBindings().get(0));
+        assertEquals(2, reboundTypeElement.getProperties().size());
+
+        for (TypeElementPropertyBinding typeElementPropertyBinding : reboundTypeElement.getBindings().get(0).getPropertyBindings()) {
+            assertNotNull(typeElementPropertyBinding.getDatabaseFieldName());
+            assertNotEquals(MapperService.VERSION_PROPERTY, typeElementPropertyBinding.getDatabaseFieldName());
+        }
+    }
+
+    @Test
+    public void testGenerateBindingUsesTableName() throws Exception {
+        String developerName = "A Type With A Name Far Too Long To Be Used As A Table Name";
+
+        TypeElement typeElement = this.bindingService.generateBinding(this.createTypeElement(developerName));
+
+        assertEquals(this.bindingService.getTableName(developerName), typeElement.getBindings().get(0).getDatabaseTableName());
+    }
+
+    @Test
+    public void testGenerateBindingDoesNotDeclareVersionPropertyTwice() throws Exception {
+        TypeElement typeElement = this.bindingService.generateBinding(this.createTypeElement("Invoice"));
+        typeElement.setServiceElementId("c5d1c7a3-38d8-4a3b-9d5b-0c6e8d2f5d1e");
+
+        typeElement = this.bindingService.generateBinding(typeElement);
+
+        assertEquals(2, typeElement.getProperties().size());
+        assertEquals(1, typeElement.getBindings().get(0).getPropertyBindings().size());
+    }
+
+    @Test
+    public void testTableNameIsShortened() throws Exception {
+        String table = this.bindingService.getTableName("A Type With A Name Far Too Long To Be Used As A Table Name");
+
+        assertEquals(50, table.length());
+        assertTrue(table, table.startsWith("a_type_with_a_name_far_too_long_to_be_use_"));
+        assertNotEquals(table, this.bindingService.getTableName("A Type With A Name Far Too Long To Be Used As A Table Name Too"));
+
+        // The names objects arrive with have already been through this, and must still name the same table
+        assertEquals(table, this.bindingService.getTableName(table));
+        assertEquals("order", this.bindingService.getTableName("Order"));
+    }
+
+    @Test
+    public void testColumnNameIsShortened() throws Exception {
+        String name = "A Property With A Name Far Too Long To Be Used As The Name Of A Column";
+        String column = this.bindingService.getColumnName(name);
+
+        assertEquals(63, column.length());
+        assertEquals(column, this.bindingService.getColumnName(column));
+        assertEquals("first_name", this.bindingService.getColumnName("First Name"));
+    }
+
+    private TypeElement createTypeElement(String developerName) {
+        TypeElementProperty nameProperty = new TypeElementProperty();
+        nameProperty.setDeveloperName("Name");
+        nameProperty.setContentType(ContentType.String);
+
+        TypeElement typeElement = new TypeElement();
+        typeElement.setDeveloperName(developerName);
+        typeElement.setServiceElementId("c5d1c7a3-38d8-4a3b-9d5b-0c6e8d2f5d1e");
+        typeElement.setProperties(new TypeElementPropertyCollection());
+        typeElement.getProperties().add(nameProperty);
+
+        return typeElement;
+    }
+}
@@ -0,0 +1,144 @@
+package com.manywho.services.backend.services;
+
+import com.manywho.sdk.entities.run.elements.type.Object;
+import com.manywho.sdk.entities.run.elements.type.ObjectCollection;
+import com.manywho.sdk.entities.run.elements.type.ObjectDataRequest;
+import com.manywho.sdk.entities.run.elements.type.ObjectDataResponse;
+import com.manywho.sdk.entities.run.elements.type.ObjectDataType;
+import com.manywho.sdk.entities.run.elements.type.ObjectDataTypeProperty;
+import com.manywho.sdk.entities.run.elements.type.ObjectDataTypePropertyCollection;
+import com.manywho.sdk.entities.run.elements.type.Property;
+import com.manywho.sdk.entities.run.elements.type.PropertyCollection;
+import com.manywho.sdk.entities.security.AuthenticatedWho;
+import com.manywho.services.backend.configuration.Configuration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+
+import static org.junit.Assert.*;
+
+public class DataServiceTest {
+    private static final String TENANT_ID = "0ea1ba1a-9f6c-4b47-9c84-3cfd5b0e5a60";
+    private static final String OBJECT_ID = "4f7bb0e4-7c55-4c7d-9e0e-6b4a2a0a0f3a";
+
+    private DataService dataService;
+    private ReplicaService replicaService;
+    private ObjectCollection savedObjects;
+
+    @Before
+    public void setUp() throws Exception {
+        this.replicaService = new ReplicaService();
+        this.savedObjects = new ObjectCollection();
+        this.savedObjects.add(this.createObject("4"));
+
+        DatabaseService databaseService = new DatabaseService() {
+            @Override
+            public Connection getConnection(Configuration configuration) {
+                return createConnection();
+            }
+
+            @Override
+            public ObjectCollection executeObjectSave(AuthenticatedWho authenticatedWho, Configuration configuration, Connection connection, String parentId, ObjectCollection objects) {
+                return savedObjects;
+            }
+        };
+
+        TableStorageService tableStorageService = new TableStorageService() {
+            @Override
+            public ObjectCollection executeObjectSave(AuthenticatedWho authenticatedWho, Connection connection, String parentId, ObjectCollection objects) {
+                return savedObjects;
+            }
+        };
+
+        this.dataService = new DataService();
+
+        Injection.inject(this.dataService, "databaseService", databaseService);
+        Injection.inject(this.dataService, "tableStorageService", tableStorageService);
+        Injection.inject(this.dataService, "loadCacheService", new LoadCacheService());
+        Injection.inject(this.dataService, "metricsService", new MetricsService());
+        Injection.inject(this.dataService, "replicaService", this.replicaService);
+    }
+
+    @After
+    public void tearDown() {
+        this.replicaService.close();
+    }
+
+    @Test
+    public void testSaveReturnsSavedObjects() throws Exception {
+        ObjectDataResponse objectDataResponse = this.dataService.save(this.createAuthenticatedWho(), new Configuration(), this.createRequest());
+
+        // The caller needs the versions the rows are now at, or the next save of the same objects is rejected
+        assertSame(this.savedObjects, objectDataResponse.getObjectData());
+        assertEquals(OBJECT_ID, objectDataResponse.getObjectData().get(0).getExternalId());
+        assertEquals("4", objectDataResponse.getObjectData().get(0).getProperties().get(1).getContentValue());
+    }
+
+    @Test
+    public void testTableStorageSaveReturnsSavedObjects() throws Exception {
+        Configuration configuration = Injection.inject(new Configuration(), "storageMode", Configuration.STORAGE_MODE_TABLE);
+
+        ObjectDataResponse objectDataResponse = this.dataService.save(this.createAuthenticatedWho(), configuration, this.createRequest());
+
+        assertSame(this.savedObjects, objectDataResponse.getObjectData());
+    }
+
+    @Test
+    public void testSaveWithoutObjectsReturnsNoObjects() throws Exception {
+        ObjectDataRequest objectDataRequest = this.createRequest();
+        objectDataRequest.setObjectData(null);
+
+        ObjectDataResponse objectDataResponse = this.dataService.save(this.createAuthenticatedWho(), new Configuration(), objectDataRequest);
+
+        assertEquals(0, objectDataResponse.getObjectData().size());
+    }
+
+    private AuthenticatedWho createAuthenticatedWho() {
+        AuthenticatedWho authenticatedWho = new AuthenticatedWho();
+        authenticatedWho.setManyWhoTenantId(TENANT_ID);
+
+        return authenticatedWho;
+    }
+
+    private ObjectDataRequest createRequest() {
+        ObjectDataTypeProperty nameProperty = new ObjectDataTypeProperty();
+        nameProperty.setDeveloperName("name");
+
+        ObjectDataType objectDataType = new ObjectDataType();
+        objectDataType.setDeveloperName("customer");
+        objectDataType.setProperties(new ObjectDataTypePropertyCollection());
+        objectDataType.getProperties().add(nameProperty);
+
+        ObjectDataRequest objectDataRequest = new ObjectDataRequest();
+        objectDataRequest.setObjectDataType(objectDataType);
+        objectDataRequest.setObjectData(new ObjectCollection());
+        objectDataRequest.getObjectData().add(this.createObject("3"));
+
+        return objectDataRequest;
+    }
+
+    private Object createObject(String version) {
+        Object object = new Object();
+        object.setDeveloperName("customer");
+        object.setExternalId(OBJECT_ID);
+        object.setProperties(new PropertyCollection());
+        object.getProperties().add(new Property("name", "Acme"));
+        object.getProperties().add(new Property(MapperService.VERSION_PROPERTY, version));
+
+        return object;
+    }
+
+    /**
+     * A connection that does nothing, as the services that would use it are replaced.
+     */
+    private Connection createConnection() {
+        return (Connection) Proxy.newProxyInstance(
+                this.getClass().getClassLoader(),
+                new Class[] { Connection.class },
+                (proxy, method, arguments) -> null
+        );
+    }
+}
@@ -0,0 +1,345 @@
+package com.manywho.services.backend.services;
+
+import com.manywho.sdk.entities.run.elements.type.Object;
+import com.manywho.sdk.entities.run.elements.type.ObjectCollection;
+import com.manywho.sdk.entities.run.elements.type.Property;
+import com.manywho.sdk.entities.run.elements.type.PropertyCollection;
+import com.manywho.sdk.entities.security.AuthenticatedWho;
+import com.manywho.services.backend.configuration.Configuration;
+import com.manywho.services.backend.entities.ObjectRow;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class DatabaseServiceTest {
+    private static final String TENANT_ID = "0ea1ba1a-9f6c-4b47-9c84-3cfd5b0e5a60";
+    private static final String OBJECT_ID = "4f7bb0e4-7c55-4c7d-9e0e-6b4a2a0a0f3a";
+
+    private DatabaseService databaseService;
+    private List<String> statements;
+    private List<String> calls;
+    private int[] batchCounts;
+    private List<java.lang.Object[]> generatedKeys;
+
+    @Before
+    public void setUp() throws Exception {
+        BindingService bindingService = new BindingService();
+
+        this.databaseService = new DatabaseService();
+
+        Injection.inject(this.databaseService, "bindingService", bindingService);
+        Injection.inject(this.databaseService, "mapperService", Injection.inject(new MapperService(), "bindingService", bindingService));
+        Injection.inject(this.databaseService, "schemaService", new SchemaService());
+        Injection.inject(this.databaseService, "metricsService", new MetricsService());
+
+        this.statements = new ArrayList<>();
+        this.calls = new ArrayList<>();
+        this.batchCounts = new int[0];
+        this.generatedKeys = new ArrayList<>();
+    }
+
+    @Test
+    public void testConflictingVersionedSaveIsRejected() throws Exception {
+        // The row has moved on since version 3 was loaded, so the update doesn't match it
+        this.batchCounts = new int[] { 0 };
+
+        try {
+            this.databaseService.executeRowSave(this.createConnection(), new JsonbStorageCodec(), Arrays.asList(this.createRow(3L)));
+
+            fail("A save of an object that has changed since it was loaded should fail.");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("have been changed or deleted since they were loaded"));
+            assertTrue(e.getMessage(), e.getMessage().contains(OBJECT_ID));
+        }
+
+        assertTrue(this.statements.get(0).startsWith("UPDATE typetables"));
+        assertTrue(this.statements.get(0).contains("AND version = ?"));
+        assertTrue(this.calls.contains("rollback"));
+        assertFalse(this.calls.contains("commit"));
+    }
+
+    @Test
+    public void testVersionedSaveIsCommitted() throws Exception {
+        this.batchCounts = new int[] { 1 };
+
+        this.databaseService.executeRowSave(this.createConnection(), new JsonbStorageCodec(), Arrays.asList(this.createRow(3L)));
+
+        assertTrue(this.statements.get(0).startsWith("UPDATE typetables"));
+        assertTrue(this.calls.contains("commit"));
+        assertFalse(this.calls.contains("rollback"));
+    }
+
+    @Test
+    public void testUnversionedSaveIsUpserted() throws Exception {
+        this.batchCounts = new int[] { 1 };
+        this.generatedKeys.add(new java.lang.Object[] { OBJECT_ID, 8L });
+
+        Map<String, Long> versions = this.databaseService.executeRowSave(this.createConnection(), new JsonbStorageCodec(), Arrays.asList(this.createRow(null)));
+
+        assertTrue(this.statements.get(0).startsWith("INSERT INTO typetables"));
+        assertTrue(this.calls.contains("commit"));
+
+        // The upsert returns the version it moved the row on to, so an object saved without one finds out what it is
+        assertTrue(this.calls.contains("returning id, version"));
+        assertEquals(Long.valueOf(8), versions.get(OBJECT_ID));
+    }
+
+    @Test
+    public void testSavedObjectsCarryTheirVersion() throws Exception {
+        // The existing object is saved without a version, so it only finds out which one it's at from the upsert
+        Object customer = this.createObject("customer", OBJECT_ID, new Property("name", "Acme"));
+
+        ObjectCollection objects = new ObjectCollection();
+        objects.add(customer);
+
+        this.batchCounts = new int[] { 1 };
+        this.generatedKeys.add(new java.lang.Object[] { OBJECT_ID, 8L });
+
+        ObjectCollection saved = this.databaseService.executeObjectSave(this.createAuthenticatedWho(), new Configuration(), this.createConnection(), null, objects);
+
+        assertEquals("8", this.getProperty(saved.get(0), MapperService.VERSION_PROPERTY).getContentValue());
+    }
+
+    @Test
+    public void testUpsertSkippedForAnotherTenantHasNoVersion() throws Exception {
+        this.batchCounts = new int[] { 0 };
+
+        try {
+            this.databaseService.executeRowSave(this.createConnection(), new JsonbStorageCodec(), Arrays.asList(this.createRow(null)));
+
+            fail("A save of an object whose id is used by another tenant should fail.");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("already used by another tenant"));
+        }
+
+        assertTrue(this.calls.contains("rollback"));
+    }
+
+    @Test
+    public void testFlattenedObjectsAttachBackTogether() throws Exception {
+        Object line = this.createObject("line", null, new Property("quantity", "2"));
+        Object customer = this.createObject("customer", OBJECT_ID, new Property("name", "Acme"));
+        Object order = this.createObject("order", null, new Property("reference", "A-1"), new Property("total", "12.50"));
+
+        Property customerProperty = new Property("customer", null);
+        customerProperty.setObjectData(new ObjectCollection());
+        customerProperty.getObjectData().add(customer);
+
+        Property linesProperty = new Property("lines", null);
+        linesProperty.setObjectData(new ObjectCollection());
+        linesProperty.getObjectData().add(line);
+
+        order.getProperties().add(customerProperty);
+        order.getProperties().add(linesProperty);
+
+        ObjectCollection objects = new ObjectCollection();
+        objects.add(order);
+
+        List<ObjectRow> objectRows = new ArrayList<>();
+
+        this.databaseService.flattenObjects(this.createAuthenticatedWho(), null, null, objects, objectRows);
+
+        // Each object is its own row, pointing back at the object and property that holds it
+        assertEquals(3, objectRows.size());
+
+        Map<String, ObjectRow> rows = new HashMap<>();
+
+        for (ObjectRow objectRow : objectRows) {
+            assertEquals(TENANT_ID, objectRow.getTenantId());
+            assertNull(objectRow.getVersion());
+
+            rows.put(objectRow.getName(), objectRow);
+        }
+
+        assertNull(rows.get("order").getParentId());
+        assertEquals(order.getExternalId(), rows.get("customer").getParentId());
+        assertEquals("customer", rows.get("customer").getParentProperty());
+        assertEquals(OBJECT_ID, rows.get("customer").getId());
+        assertEquals(order.getExternalId(), rows.get("line").getParentId());
+        assertEquals("lines", rows.get("line").getParentProperty());
+
+        // Loading the top row and attaching the rest gives back the same objects
+        ObjectRow orderRow = rows.remove("order");
+        Object loadedOrder = this.createMapperService().convertRowToObject(orderRow.getName(), orderRow.getId(), orderRow.getData());
+
+        ObjectCollection loaded = new ObjectCollection();
+        loaded.add(loadedOrder);
+
+        this.createMapperService().attachDescendants(loaded, new ArrayList<>(rows.values()));
+
+        assertEquals("A-1", this.getProperty(loadedOrder, "reference").getContentValue());
+        assertEquals("12.50", this.getProperty(loadedOrder, "total").getContentValue());
+
+        Object loadedCustomer = this.getProperty(loadedOrder, "customer").getObjectData().get(0);
+
+        assertEquals(OBJECT_ID, loadedCustomer.getExternalId());
+        assertEquals("customer", loadedCustomer.getDeveloperName());
+        assertEquals("Acme", this.getProperty(loadedCustomer, "name").getContentValue());
+
+        Object loadedLine = this.getProperty(loadedOrder, "lines").getObjectData().get(0);
+
+        assertEquals(line.getExternalId(), loadedLine.getExternalId());
+        assertEquals("2", this.getProperty(loadedLine, "quantity").getContentValue());
+    }
+
+    @Test
+    public void testFlattenedObjectsKeepTheirVersion() throws Exception {
+        Object customer = this.createObject("customer", OBJECT_ID, new Property("name", "Acme"), new Property(MapperService.VERSION_PROPERTY, "3"));
+        Object newCustomer = this.createObject("customer", null, new Property("name", "Globex"));
+
+        ObjectCollection objects = new ObjectCollection();
+        objects.add(customer);
+        objects.add(newCustomer);
+
+        List<ObjectRow> objectRows = new ArrayList<>();
+
+        ObjectCollection saved = this.databaseService.flattenObjects(this.createAuthenticatedWho(), null, null, objects, objectRows);
+
+        // The version is only used to check the row, so it isn't stored with the other properties
+        assertEquals(Long.valueOf(3), objectRows.get(0).getVersion());
+        assertEquals("{\"name\":\"Acme\"}", objectRows.get(0).getData());
+        assertNull(objectRows.get(1).getVersion());
+
+        // The saved objects carry the version their rows are now at
+        assertEquals("4", this.getProperty(saved.get(0), MapperService.VERSION_PROPERTY).getContentValue());
+        assertEquals("1", this.getProperty(saved.get(1), MapperService.VERSION_PROPERTY).getContentValue());
+    }
+
+    @Test
+    public void testFlattenedObjectWithInvalidVersionFails() throws Exception {
+        ObjectCollection objects = new ObjectCollection();
+        objects.add(this.createObject("customer", OBJECT_ID, new Property(MapperService.VERSION_PROPERTY, "three")));
+
+        try {
+            this.databaseService.flattenObjects(this.createAuthenticatedWho(), null, null, objects, new ArrayList<>());
+
+            fail("A version that isn't a whole number should fail.");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("must be a whole number"));
+        }
+    }
+
+    private MapperService createMapperService() throws Exception {
+        return Injection.inject(new MapperService(), "bindingService", new BindingService());
+    }
+
+    private AuthenticatedWho createAuthenticatedWho() {
+        AuthenticatedWho authenticatedWho = new AuthenticatedWho();
+        authenticatedWho.setManyWhoTenantId(TENANT_ID);
+
+        return authenticatedWho;
+    }
+
+    private Object createObject(String developerName, String externalId, Property... properties) {
+        Object object = new Object();
+        object.setDeveloperName(developerName);
+        object.setExternalId(externalId);
+        object.setProperties(new PropertyCollection());
+        object.getProperties().addAll(Arrays.asList(properties));
+
+        return object;
+    }
+
+    private Property getProperty(Object object, String developerName) {
+        for (Property property : object.getProperties()) {
+            if (developerName.equals(property.getDeveloperName()) == true) {
+                return property;
+            }
+        }
+
+        fail("The object " + object.getDeveloperName() + " doesn't have the property " + developerName);
+
+        return null;
+    }
+
+    private ObjectRow createRow(Long version) {
+        return new ObjectRow(OBJECT_ID, null, null, "customer", TENANT_ID, "{\"name\":\"Acme\"}", version);
+    }
+
+    /**
+     * A connection that records the statements prepared on it and whether it was committed or rolled back, with every
+     * batch returning the update counts set by the test.
+     */
+    private Connection createConnection() {
+        PreparedStatement preparedStatement = (PreparedStatement) Proxy.newProxyInstance(
+                this.getClass().getClassLoader(),
+                new Class[] { PreparedStatement.class },
+                (proxy, method, arguments) -> {
+                    if (method.getName().equals("executeBatch") == true) {
+                        return this.batchCounts;
+                    }
+
+                    if (method.getName().equals("getGeneratedKeys") == true) {
+                        return this.createResultSet(this.generatedKeys);
+                    }
+
+                    if (method.getName().equals("executeQuery") == true) {
+                        return this.createResultSet(new ArrayList<>());
+                    }
+
+                    return null;
+                }
+        );
+
+        return (Connection) Proxy.newProxyInstance(
+                this.getClass().getClassLoader(),
+                new Class[] { Connection.class },
+                (proxy, method, arguments) -> {
+                    switch (method.getName()) {
+                        case "prepareStatement":
+                            this.statements.add((String) arguments[0]);
+
+                            if (arguments.length > 1 &&
+                                    arguments[1] instanceof String[]) {
+                                this.calls.add("returning " + String.join(", ", (String[]) arguments[1]));
+                            }
+
+                            return preparedStatement;
+                        case "getAutoCommit":
+                            return true;
+                        case "isClosed":
+                            return false;
+                        case "commit":
+                        case "rollback":
+                            this.calls.add(method.getName());
+
+                            return null;
+                        default:
+                            return null;
+                    }
+                }
+        );
+    }
+
+    private ResultSet createResultSet(List<java.lang.Object[]> rows) {
+        int[] row = { -1 };
+
+        return (ResultSet) Proxy.newProxyInstance(
+                this.getClass().getClassLoader(),
+                new Class[] { ResultSet.class },
+                (proxy, method, arguments) -> {
+                    switch (method.getName()) {
+                        case "next":
+                            return ++row[0] < rows.size();
+                        case "getString":
+                            return (String) rows.get(row[0])[(Integer) arguments[0] - 1];
+                        case "getLong":
+                            return (Long) rows.get(row[0])[(Integer) arguments[0] - 1];
+                        default:
+                            return null;
+                    }
+                }
+        );
+    }
+}
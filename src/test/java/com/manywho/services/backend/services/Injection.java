@@ -0,0 +1,19 @@
+package com.manywho.services.backend.services;
+
+import java.lang.reflect.Field;
+
+/**
+ * Sets the fields that HK2 would normally inject, so services can be tested without starting the application.
+ */
+final class Injection {
+    private Injection() {
+    }
+
+    static <T> T inject(T target, String fieldName, java.lang.Object value) throws Exception {
+        Field field = target.getClass().getDeclaredField(fieldName);
+        field.setAccessible(true);
+        field.set(target, value);
+
+        return target;
+    }
+}
@@ -0,0 +1,347 @@
+package com.manywho.services.backend.services;
+
+import com.manywho.sdk.entities.run.elements.type.ListFilter;
+import com.manywho.sdk.entities.run.elements.type.ListFilterWhere;
+import com.manywho.sdk.enums.CriteriaType;
+import com.manywho.services.backend.entities.Keyset;
+import com.manywho.services.backend.entities.Query;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class QueryServiceTest {
+    private static final String OBJECT_ID = "4f7bb0e4-7c55-4c7d-9e0e-6b4a2a0a0f3a";
+
+    // Columns of the table storage mode, where age is a numeric column and everything else is text
+    private static final ColumnResolver TABLE_COLUMNS = new ColumnResolver() {
+        @Override
+        public String getExpression(String name) {
+            return "\"" + name + "\"";
+        }
+
+        @Override
+        public String getType(String name) {
+            return name.equals("age") == true ? "numeric" : "text";
+        }
+
+        @Override
+        public String getSearchExpression() {
+            return null;
+        }
+    };
+
+    private QueryService queryService;
+
+    @Before
+    public void setUp() throws Exception {
+        this.queryService = Injection.inject(new QueryService(), "bindingService", new BindingService());
+    }
+
+    @Test
+    public void testEqual() throws Exception {
+        Query query = this.compile(this.createListFilter(this.createWhere("name", CriteriaType.Equal, "Acme")));
+
+        assertEquals("AND ((data->>'name') = ?) ORDER BY id ASC LIMIT ? OFFSET ? ", query.getSql());
+        assertEquals(Arrays.asList("Acme", 10, 0), query.getParameters());
+    }
+
+    @Test
+    public void testEqualIsDefaultCriteriaType() throws Exception {
+        Query query = this.compile(this.createListFilter(this.createWhere("name", null, "Acme")));
+
+        assertEquals("AND ((data->>'name') = ?) ORDER BY id ASC LIMIT ? OFFSET ? ", query.getSql());
+    }
+
+    @Test
+    public void testEqualEmpty() throws Exception {
+        Query query = this.compile(this.createListFilter(this.createWhere("name", CriteriaType.Equal, "")));
+
+        assertEquals("AND (((data->>'name') IS NULL OR (data->>'name') = '')) ORDER BY id ASC LIMIT ? OFFSET ? ", query.getSql());
+        assertEquals(Arrays.asList(10, 0), query.getParameters());
+    }
+
+    @Test
+    public void testNotEqual() throws Exception {
+        Query query = this.compile(this.createListFilter(this.createWhere("name", CriteriaType.NotEqual, "Acme")));
+
+        assertTrue(query.getSql(), query.getSql().startsWith("AND (((data->>'name') IS NULL OR (data->>'name') <> ?)) "));
+        assertEquals(Arrays.asList("Acme", 10, 0), query.getParameters());
+    }
+
+    @Test
+    public void testNotEqualEmpty() throws Exception {
+        Query query = this.compile(this.createListFilter(this.createWhere("name", CriteriaType.NotEqual, null)));
+
+        assertTrue(query.getSql(), query.getSql().startsWith("AND (((data->>'name') IS NOT NULL AND (data->>'name') <> '')) "));
+    }
+
+    @Test
+    public void testComparisonsOfNumbers() throws Exception {
+        String[][] operators = {
+                { "GreaterThan", ">" },
+                { "GreaterThanOrEqual", ">=" },
+                { "LessThan", "<" },
+                { "LessThanOrEqual", "<=" }
+        };
+
+        for (String[] operator : operators) {
+            Query query = this.compile(this.createListFilter(this.createWhere("age", CriteriaType.valueOf(operator[0]), "-18.5")));
+
+            assertTrue(query.getSql(), query.getSql().startsWith("AND (CASE WHEN (data->>'age') ~ '^-{0,1}[0-9]+([.][0-9]+){0,1}$' THEN CAST((data->>'age') AS numeric) END " + operator[1] + " ?) "));
+            assertEquals(Arrays.asList(new BigDecimal("-18.5"), 10, 0), query.getParameters());
+        }
+    }
+
+    @Test
+    public void testComparisonsOfText() throws Exception {
+        Query query = this.compile(this.createListFilter(this.createWhere("created", CriteriaType.GreaterThanOrEqual, "2016-01-01T00:00:00Z")));
+
+        assertTrue(query.getSql(), query.getSql().startsWith("AND ((data->>'created') >= ?) "));
+        assertEquals(Arrays.asList("2016-01-01T00:00:00Z", 10, 0), query.getParameters());
+    }
+
+    @Test
+    public void testComparisonWithoutValueFails() throws Exception {
+        try {
+            this.compile(this.createListFilter(this.createWhere("age", CriteriaType.LessThan, "")));
+
+            fail("A comparison without a value should fail.");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("ContentValue must be provided"));
+        }
+    }
+
+    @Test
+    public void testContainsEscapesWildcards() throws Exception {
+        Query query = this.compile(this.createListFilter(this.createWhere("name", CriteriaType.Contains, "50%_off!")));
+
+        assertTrue(query.getSql(), query.getSql().startsWith("AND ((data->>'name') ILIKE ? ESCAPE '!') "));
+        assertEquals(Arrays.asList("%50!%!_off!!%", 10, 0), query.getParameters());
+    }
+
+    @Test
+    public void testStartsWith() throws Exception {
+        Query query = this.compile(this.createListFilter(this.createWhere("name", CriteriaType.StartsWith, "a_b")));
+
+        assertTrue(query.getSql(), query.getSql().startsWith("AND ((data->>'name') ILIKE ? ESCAPE '!') "));
+        assertEquals(Arrays.asList("a!_b%", 10, 0), query.getParameters());
+    }
+
+    @Test
+    public void testEndsWith() throws Exception {
+        Query query = this.compile(this.createListFilter(this.createWhere("name", CriteriaType.EndsWith, "a%b")));
+
+        assertTrue(query.getSql(), query.getSql().startsWith("AND ((data->>'name') ILIKE ? ESCAPE '!') "));
+        assertEquals(Arrays.asList("%a!%b", 10, 0), query.getParameters());
+    }
+
+    @Test
+    public void testContainsWithoutValueMatchesEverything() throws Exception {
+        Query query = this.compile(this.createListFilter(this.createWhere("name", CriteriaType.Contains, null)));
+
+        assertEquals(Arrays.asList("%%", 10, 0), query.getParameters());
+    }
+
+    @Test
+    public void testIsEmpty() throws Exception {
+        String isEmpty = "AND (((data->>'name') IS NULL OR (data->>'name') = '')) ";
+        String isNotEmpty = "AND (((data->>'name') IS NOT NULL AND (data->>'name') <> '')) ";
+
+        assertTrue(this.compile(this.createListFilter(this.createWhere("name", CriteriaType.IsEmpty, null))).getSql().startsWith(isEmpty));
+        assertTrue(this.compile(this.createListFilter(this.createWhere("name", CriteriaType.IsEmpty, "true"))).getSql().startsWith(isEmpty));
+        assertTrue(this.compile(this.createListFilter(this.createWhere("name", CriteriaType.IsEmpty, "false"))).getSql().startsWith(isNotEmpty));
+    }
+
+    @Test
+    public void testTypedColumns() throws Exception {
+        Query query = new Query();
+
+        this.queryService.compileListFilter(query, this.createListFilter(
+                this.createWhere("age", CriteriaType.GreaterThan, "18"),
+                this.createWhere("age", CriteriaType.Equal, ""),
+                this.createWhere("age", CriteriaType.Contains, "1"),
+                this.createWhere("name", CriteriaType.Equal, "")
+        ), TABLE_COLUMNS);
+
+        assertEquals("AND (\"age\" > CAST(? AS numeric) AND \"age\" IS NULL AND CAST(\"age\" AS text) ILIKE ? ESCAPE '!' AND (\"name\" IS NULL OR \"name\" = '')) ORDER BY id ASC LIMIT ? OFFSET ? ", query.getSql());
+        assertEquals(Arrays.asList("18", "%1%", 10, 0), query.getParameters());
+    }
+
+    @Test
+    public void testOrComparison() throws Exception {
+        ListFilter listFilter = this.createListFilter(
+                this.createWhere("name", CriteriaType.Equal, "Acme"),
+                this.createWhere("city", CriteriaType.Equal, "Leeds")
+        );
+        listFilter.setComparisonType("or");
+
+        Query query = this.compile(listFilter);
+
+        assertTrue(query.getSql(), query.getSql().startsWith("AND ((data->>'name') = ? OR (data->>'city') = ?) "));
+    }
+
+    @Test
+    public void testInvalidColumnNameFails() throws Exception {
+        try {
+            this.compile(this.createListFilter(this.createWhere("name'; DROP TABLE typetables; --", CriteriaType.Equal, "Acme")));
+
+            fail("A column name that isn't safe to write into SQL should fail.");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("The provided name is not valid"));
+        }
+    }
+
+    @Test
+    public void testOrderBy() throws Exception {
+        ListFilter listFilter = this.createListFilter();
+        listFilter.setOrderByPropertyDeveloperName("name");
+
+        Query query = this.compile(listFilter);
+
+        assertEquals("ORDER BY (data->>'name') ASC, id ASC LIMIT ? OFFSET ? ", query.getSql());
+    }
+
+    @Test
+    public void testKeysetWithoutOrderBy() throws Exception {
+        Query query = this.compile(this.createListFilter(), new Keyset(null, null, null, OBJECT_ID));
+
+        assertEquals("AND id > ? ORDER BY id ASC LIMIT ? ", query.getSql());
+        assertEquals(Arrays.asList(OBJECT_ID, 10), query.getParameters());
+    }
+
+    @Test
+    public void testKeysetAscending() throws Exception {
+        ListFilter listFilter = this.createListFilter();
+        listFilter.setOrderByPropertyDeveloperName("name");
+
+        Query query = this.compile(listFilter, new Keyset("name", "ASC", "Acme", OBJECT_ID));
+
+        assertEquals("AND ((data->>'name') > ? OR ((data->>'name') = ? AND id > ?) OR (data->>'name') IS NULL) ORDER BY (data->>'name') ASC, id ASC LIMIT ? ", query.getSql());
+        assertEquals(Arrays.asList("Acme", "Acme", OBJECT_ID, 10), query.getParameters());
+    }
+
+    @Test
+    public void testKeysetAscendingFromNull() throws Exception {
+        ListFilter listFilter = this.createListFilter();
+        listFilter.setOrderByPropertyDeveloperName("name");
+
+        Query query = this.compile(listFilter, new Keyset("name", "ASC", null, OBJECT_ID));
+
+        // Nulls sort last in ascending order, so only the rest of the nulls are left
+        assertEquals("AND (data->>'name') IS NULL AND id > ? ORDER BY (data->>'name') ASC, id ASC LIMIT ? ", query.getSql());
+        assertEquals(Arrays.asList(OBJECT_ID, 10), query.getParameters());
+    }
+
+    @Test
+    public void testKeysetDescending() throws Exception {
+        ListFilter listFilter = this.createListFilter();
+        listFilter.setOrderByPropertyDeveloperName("name");
+        listFilter.setOrderByDirectionType("desc");
+
+        Query query = this.compile(listFilter, new Keyset("name", "DESC", "Acme", OBJECT_ID));
+
+        assertEquals("AND ((data->>'name') < ? OR ((data->>'name') = ? AND id > ?)) ORDER BY (data->>'name') DESC, id ASC LIMIT ? ", query.getSql());
+        assertEquals(Arrays.asList("Acme", "Acme", OBJECT_ID, 10), query.getParameters());
+    }
+
+    @Test
+    public void testKeysetDescendingFromNull() throws Exception {
+        ListFilter listFilter = this.createListFilter();
+        listFilter.setOrderByPropertyDeveloperName("name");
+        listFilter.setOrderByDirectionType("DESC");
+
+        Query query = this.compile(listFilter, new Keyset("name", "DESC", null, OBJECT_ID));
+
+        // Nulls sort first in descending order, so the rest of the nulls come before every row with a value
+        assertEquals("AND (((data->>'name') IS NULL AND id > ?) OR (data->>'name') IS NOT NULL) ORDER BY (data->>'name') DESC, id ASC LIMIT ? ", query.getSql());
+        assertEquals(Arrays.asList(OBJECT_ID, 10), query.getParameters());
+    }
+
+    @Test
+    public void testKeysetOnTypedColumn() throws Exception {
+        ListFilter listFilter = this.createListFilter();
+        listFilter.setOrderByPropertyDeveloperName("age");
+
+        Query query = new Query();
+
+        this.queryService.compileListFilter(query, listFilter, TABLE_COLUMNS, new Keyset("age", "ASC", "42", OBJECT_ID));
+
+        assertEquals("AND (\"age\" > CAST(? AS numeric) OR (\"age\" = CAST(? AS numeric) AND id > ?) OR \"age\" IS NULL) ORDER BY \"age\" ASC, id ASC LIMIT ? ", query.getSql());
+    }
+
+    @Test
+    public void testKeysetTokenRoundTrip() throws Exception {
+        ListFilter listFilter = this.createListFilter();
+        listFilter.setOrderByPropertyDeveloperName("name");
+
+        String token = this.queryService.encodeKeyset(new Keyset("name", "ASC", null, OBJECT_ID));
+        Keyset keyset = this.queryService.decodeKeyset(token, listFilter);
+
+        assertEquals("name", keyset.getOrderBy());
+        assertEquals("ASC", keyset.getDirection());
+        assertNull(keyset.getValue());
+        assertEquals(OBJECT_ID, keyset.getId());
+    }
+
+    @Test
+    public void testKeysetTokenForDifferentOrderingFails() throws Exception {
+        ListFilter listFilter = this.createListFilter();
+        listFilter.setOrderByPropertyDeveloperName("name");
+        listFilter.setOrderByDirectionType("DESC");
+
+        String token = this.queryService.encodeKeyset(new Keyset("name", "ASC", "Acme", OBJECT_ID));
+
+        try {
+            this.queryService.decodeKeyset(token, listFilter);
+
+            fail("A continuation token for a different ordering should fail.");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("same ordering"));
+        }
+    }
+
+    @Test
+    public void testInvalidKeysetTokenFails() throws Exception {
+        try {
+            this.queryService.decodeKeyset("not a token", this.createListFilter());
+
+            fail("A continuation token that can't be decoded should fail.");
+        } catch (Exception e) {
+            assertEquals("The continuation token is not valid.", e.getMessage());
+        }
+    }
+
+    private Query compile(ListFilter listFilter) throws Exception {
+        return this.compile(listFilter, null);
+    }
+
+    private Query compile(ListFilter listFilter, Keyset keyset) throws Exception {
+        Query query = new Query();
+
+        this.queryService.compileListFilter(query, listFilter, this.queryService.getJsonColumns(), keyset);
+
+        return query;
+    }
+
+    private ListFilter createListFilter(ListFilterWhere... wheres) {
+        ListFilter listFilter = new ListFilter();
+        listFilter.setLimit(10);
+        listFilter.setWhere(new ArrayList<>(Arrays.asList(wheres)));
+
+        return listFilter;
+    }
+
+    private ListFilterWhere createWhere(String columnName, CriteriaType criteriaType, String contentValue) {
+        ListFilterWhere listFilterWhere = new ListFilterWhere();
+        listFilterWhere.setColumnName(columnName);
+        listFilterWhere.setCriteriaType(criteriaType);
+        listFilterWhere.setContentValue(contentValue);
+
+        return listFilterWhere;
+    }
+}
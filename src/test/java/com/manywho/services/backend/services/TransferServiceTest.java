@@ -0,0 +1,96 @@
+package com.manywho.services.backend.services;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TransferServiceTest {
+    private static final String OBJECT_ID = "4f7bb0e4-7c55-4c7d-9e0e-6b4a2a0a0f3a";
+    private static final String PARENT_ID = "0ea1ba1a-9f6c-4b47-9c84-3cfd5b0e5a60";
+
+    private TransferService transferService;
+
+    @Before
+    public void setUp() throws Exception {
+        this.transferService = Injection.inject(new TransferService(), "bindingService", new BindingService());
+    }
+
+    @Test
+    public void testCopyRow() throws Exception {
+        String line = "{\"id\":\"" + OBJECT_ID + "\",\"parentId\":\"" + PARENT_ID + "\",\"parentProperty\":\"lines\",\"name\":\"line\",\"data\":{\"quantity\":2}}";
+
+        assertEquals("7\t" + OBJECT_ID + "\t" + PARENT_ID + "\tlines\tline\t{\"quantity\":2}\n", this.appendCopyRow(7, line));
+    }
+
+    @Test
+    public void testCopyRowWritesMissingValuesAsNull() throws Exception {
+        String line = "{\"id\":\"" + OBJECT_ID + "\",\"name\":\"customer\",\"data\":{}}";
+
+        assertEquals("1\t" + OBJECT_ID + "\t\\N\t\\N\tcustomer\t{}\n", this.appendCopyRow(1, line));
+    }
+
+    @Test
+    public void testCopyRowEscapesSeparators() throws Exception {
+        // The json escapes are turned back into the characters they stand for when the line is parsed, so they have
+        // to be escaped again for COPY
+        String line = "{\"id\":\"" + OBJECT_ID + "\",\"parentProperty\":\"a\\tb\\nc\\rd\\\\e\",\"name\":\"customer\",\"data\":{}}";
+
+        assertEquals("1\t" + OBJECT_ID + "\t\\N\ta\\tb\\nc\\rd\\\\e\tcustomer\t{}\n", this.appendCopyRow(1, line));
+    }
+
+    @Test
+    public void testCopyRowKeepsDataAsJson() throws Exception {
+        // Backslashes in the json of the data are escaped once more, so COPY gives back exactly the same json
+        String line = "{\"id\":\"" + OBJECT_ID + "\",\"name\":\"customer\",\"data\":{\"note\":\"a\\tb\\\\c\"}}";
+
+        assertEquals("1\t" + OBJECT_ID + "\t\\N\t\\N\tcustomer\t{\"note\":\"a\\\\tb\\\\\\\\c\"}\n", this.appendCopyRow(1, line));
+    }
+
+    @Test
+    public void testCopyRowWithInvalidIdFails() throws Exception {
+        this.assertInvalid("{\"id\":\"1\",\"name\":\"customer\",\"data\":{}}", "The provided identifier is not valid");
+    }
+
+    @Test
+    public void testCopyRowWithoutIdFails() throws Exception {
+        this.assertInvalid("{\"name\":\"customer\",\"data\":{}}", "The id property cannot be null or blank.");
+        this.assertInvalid("{\"id\":null,\"name\":\"customer\",\"data\":{}}", "The id property cannot be null or blank.");
+    }
+
+    @Test
+    public void testCopyRowWithInvalidNameFails() throws Exception {
+        this.assertInvalid("{\"id\":\"" + OBJECT_ID + "\",\"name\":\"Customer\\t\",\"data\":{}}", "The provided name is not valid");
+    }
+
+    @Test
+    public void testCopyRowWithoutDataFails() throws Exception {
+        this.assertInvalid("{\"id\":\"" + OBJECT_ID + "\",\"name\":\"customer\"}", "The data property cannot be null.");
+        this.assertInvalid("{\"id\":\"" + OBJECT_ID + "\",\"name\":\"customer\",\"data\":\"{}\"}", "The data property must be a json object.");
+    }
+
+    @Test
+    public void testCopyRowWithInvalidJsonFails() throws Exception {
+        this.assertInvalid("[]", "The line isn't a json object.");
+        this.assertInvalid("{\"id\":", "Line 3 of the import isn't valid");
+    }
+
+    private String appendCopyRow(long lineNumber, String line) throws Exception {
+        StringBuilder copyRow = new StringBuilder();
+
+        this.transferService.appendCopyRow(copyRow, lineNumber, line);
+
+        return copyRow.toString();
+    }
+
+    private void assertInvalid(String line, String message) {
+        try {
+            this.appendCopyRow(3, line);
+
+            fail("The line should not be valid: " + line);
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Line 3 of the import isn't valid: "));
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+}